@@ -0,0 +1,407 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.bukkit.*;
+
+/**
+ * ChunkClassification sorts every block of a space that falls within one chunk
+ * by how many of its six neighbors are also in the space; this is what decides
+ * whether a tunnel block becomes a corner, an edge, a wall, a floor or air.
+ *
+ * We work this out for the whole chunk at once. The space is drawn into a
+ * bitmask with one extra column all round, taken from the neighboring chunks,
+ * and then each column's neighbors are just the columns beside it, or the
+ * same column shifted a bit up or down. The six neighbor bit-planes are added
+ * up 64 blocks at a time with bitwise adders.
+ *
+ * Drawing the space is most of the work, so it can be shared out among the
+ * threads of an executor; see of(Space, World, int, int, Executor, int).
+ *
+ * Blocks are indexed by x, then z, then y, just like ChunkMaskSpace.
+ *
+ * @author DanJ
+ */
+public final class ChunkClassification {
+
+    /**
+     * A block that is not in the space, or has fewer than 3 neighbors in it.
+     */
+    public static final byte NONE = 0;
+    /**
+     * A block with 3 neighbors in the space.
+     */
+    public static final byte CORNER = 1;
+    /**
+     * A block with 4 neighbors in the space.
+     */
+    public static final byte EDGE = 2;
+    /**
+     * A block with 5 neighbors in the space, including the one below it.
+     */
+    public static final byte WALL = 3;
+    /**
+     * A block with 5 neighbors in the space, but not the one below it.
+     */
+    public static final byte FLOOR = 4;
+    /**
+     * A block with all 6 neighbors in the space.
+     */
+    public static final byte AIR = 5;
+    /**
+     * This is the number of blocks in a chunk, and the size of the index
+     * space.
+     */
+    public static final int VOLUME = 16 * 16 * ChunkMaskSpace.HEIGHT;
+    private static final int WORDS = ChunkMaskSpace.WORDS_PER_COLUMN;
+    private static final int HALO_SIZE = 18;
+    private static final int SECTIONS = ChunkMaskSpace.HEIGHT / 16;
+    private final int minX, minZ;
+    private final byte[] kinds;
+    private final int classifiedCount;
+    private final int occupiedSections;
+
+    private ChunkClassification(int minX, int minZ, byte[] kinds, int classifiedCount, int occupiedSections) {
+        this.minX = minX;
+        this.minZ = minZ;
+        this.kinds = kinds;
+        this.classifiedCount = classifiedCount;
+        this.occupiedSections = occupiedSections;
+    }
+
+    /**
+     * This classifies each block of 'space' that is inside the chunk given.
+     * Only blocks within the height of the world are classified, but the
+     * space just above and below it still counts as a neighbor.
+     *
+     * @param space The space to classify; it may extend beyond the chunk.
+     * @param chunk The chunk whose blocks are wanted.
+     * @return The classification of each block in the chunk.
+     */
+    public static ChunkClassification of(Space space, Chunk chunk) {
+        return of(space, chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    /**
+     * This classifies each block of 'space' that is inside the chunk given by
+     * its co-ordinates; this does not touch the chunk itself, so it may be
+     * used off the main thread.
+     *
+     * @param space The space to classify; it may extend beyond the chunk.
+     * @param world The world of the chunk.
+     * @param chunkX The x co-ordinate of the chunk, in chunks.
+     * @param chunkZ The z co-ordinate of the chunk, in chunks.
+     * @return The classification of each block in the chunk.
+     */
+    public static ChunkClassification of(Space space, World world, int chunkX, int chunkZ) {
+        return of(space, world, chunkX, chunkZ, null, 1);
+    }
+
+    /**
+     * This classifies each block of 'space' that is inside the chunk given by
+     * its co-ordinates, like of(Space, World, int, int), but the space is split
+     * into parts that the executor's threads help to draw. This thread draws
+     * parts too, so this may be called from one of the executor's threads even
+     * when all of them are busy; see Space.forEachBlockInParallel().
+     *
+     * @param space The space to classify; it may extend beyond the chunk.
+     * @param world The world of the chunk.
+     * @param chunkX The x co-ordinate of the chunk, in chunks.
+     * @param chunkZ The z co-ordinate of the chunk, in chunks.
+     * @param helpers The executor whose threads may help, or null to do all
+     * the work on this thread.
+     * @param parts The number of parts to split the space into.
+     * @return The classification of each block in the chunk.
+     */
+    public static ChunkClassification of(Space space, World world, int chunkX, int chunkZ, Executor helpers, int parts) {
+        Preconditions.checkNotNull(space);
+        Preconditions.checkNotNull(world);
+
+        final int minX = chunkX * 16;
+        final int minZ = chunkZ * 16;
+
+        Space nearby = space.within(minX - 1, minX + 16, minZ - 1, minZ + 16, world);
+        HaloDrawing drawing;
+
+        if (helpers != null && parts > 1) {
+            drawing = new HaloDrawing(world, minX, minZ, true);
+            nearby.forEachBlockInParallel(drawing, helpers, parts);
+        } else {
+            drawing = new HaloDrawing(world, minX, minZ, false);
+            nearby.forEachBlock(drawing);
+        }
+
+        long[] halo = drawing.getHalo();
+        boolean[] floorBelow = drawing.floorBelow;
+        boolean[] ceilingAbove = drawing.ceilingAbove;
+
+        byte[] kinds = new byte[VOLUME];
+        int classifiedCount = 0;
+        int occupiedSections = 0;
+
+        for (int lx = 0; lx < 16; ++lx) {
+            for (int lz = 0; lz < 16; ++lz) {
+                int center = haloColumn(lx + 1, lz + 1);
+                int east = haloColumn(lx + 2, lz + 1);
+                int west = haloColumn(lx, lz + 1);
+                int south = haloColumn(lx + 1, lz + 2);
+                int north = haloColumn(lx + 1, lz);
+                int columnBase = ((lx << 4) | lz) << 8;
+
+                for (int w = 0; w < WORDS; ++w) {
+                    long here = halo[center + w];
+
+                    if (here == 0) {
+                        continue;
+                    }
+
+                    long below = halo[center + w] << 1;
+                    long above = halo[center + w] >>> 1;
+
+                    if (w > 0) {
+                        below |= halo[center + w - 1] >>> 63;
+                    } else if (floorBelow[(lx << 4) | lz]) {
+                        below |= 1L;
+                    }
+
+                    if (w < WORDS - 1) {
+                        above |= halo[center + w + 1] << 63;
+                    } else if (ceilingAbove[(lx << 4) | lz]) {
+                        above |= 1L << 63;
+                    }
+
+                    // a three bit counter, one bit-plane per bit
+                    long s0 = 0, s1 = 0, s2 = 0;
+                    long[] planes = {
+                        below, above,
+                        halo[east + w], halo[west + w],
+                        halo[south + w], halo[north + w]
+                    };
+
+                    for (long plane : planes) {
+                        long c0 = s0 & plane;
+                        s0 ^= plane;
+                        long c1 = s1 & c0;
+                        s1 ^= c0;
+                        s2 |= c1;
+                    }
+
+                    long three = here & s0 & s1 & ~s2;
+                    long four = here & ~s0 & ~s1 & s2;
+                    long five = here & s0 & ~s1 & s2;
+                    long six = here & ~s0 & s1 & s2;
+
+                    long classified = three | four | five | six;
+                    classifiedCount += Long.bitCount(classified);
+
+                    for (int part = 0; part < 4; ++part) {
+                        if (((classified >>> (part * 16)) & 0xFFFF) != 0) {
+                            occupiedSections |= 1 << (w * 4 + part);
+                        }
+                    }
+
+                    int base = columnBase | (w << 6);
+                    mark(kinds, base, three, CORNER);
+                    mark(kinds, base, four, EDGE);
+                    mark(kinds, base, five & below, WALL);
+                    mark(kinds, base, five & ~below, FLOOR);
+                    mark(kinds, base, six, AIR);
+                }
+            }
+        }
+
+        return new ChunkClassification(minX, minZ, kinds, classifiedCount, occupiedSections);
+    }
+
+    private static int haloColumn(int hx, int hz) {
+        return (hx * HALO_SIZE + hz) * WORDS;
+    }
+
+    /**
+     * This action draws the space into the bitmask, whose columns run from -1
+     * to 16 in x and z, so index 0 is the halo column in the neighboring
+     * chunk. When it is shared between threads, the bits are set with
+     * compare-and-set, since two parts of a union can hit the same word.
+     */
+    private static final class HaloDrawing implements Space.BlockAction {
+
+        private final World world;
+        private final int minX, minZ;
+        private final long[] halo;
+        private final AtomicLongArray sharedHalo;
+        /**
+         * These say whether the space holds the block just below or just
+         * above each column of the chunk itself, outside the height of the
+         * world; other threads only ever set these to true.
+         */
+        public final boolean[] floorBelow = new boolean[16 * 16];
+        public final boolean[] ceilingAbove = new boolean[16 * 16];
+
+        public HaloDrawing(World world, int minX, int minZ, boolean shared) {
+            this.world = world;
+            this.minX = minX;
+            this.minZ = minZ;
+
+            if (shared) {
+                this.halo = null;
+                this.sharedHalo = new AtomicLongArray(HALO_SIZE * HALO_SIZE * WORDS);
+            } else {
+                this.halo = new long[HALO_SIZE * HALO_SIZE * WORDS];
+                this.sharedHalo = null;
+            }
+        }
+
+        @Override
+        public void apply(int x, int y, int z, World blockWorld) {
+            int hx = x - minX + 1;
+            int hz = z - minZ + 1;
+
+            if (blockWorld != world
+                    || hx < 0 || hx >= HALO_SIZE
+                    || hz < 0 || hz >= HALO_SIZE) {
+                return;
+            }
+
+            if (y >= 0 && y < ChunkMaskSpace.HEIGHT) {
+                int word = haloColumn(hx, hz) + (y >>> 6);
+                long bit = 1L << y;
+
+                if (sharedHalo == null) {
+                    halo[word] |= bit;
+                } else {
+                    long old = sharedHalo.get(word);
+
+                    while ((old & bit) == 0 && !sharedHalo.compareAndSet(word, old, old | bit)) {
+                        old = sharedHalo.get(word);
+                    }
+                }
+            } else if (hx >= 1 && hx <= 16 && hz >= 1 && hz <= 16) {
+                int column = ((hx - 1) << 4) | (hz - 1);
+
+                if (y == -1) {
+                    floorBelow[column] = true;
+                } else if (y == ChunkMaskSpace.HEIGHT) {
+                    ceilingAbove[column] = true;
+                }
+            }
+        }
+
+        /**
+         * This returns the bitmask; call this only once drawing is done.
+         *
+         * @return The bitmask, indexed by haloColumn() plus the word.
+         */
+        public long[] getHalo() {
+            if (sharedHalo == null) {
+                return halo;
+            }
+
+            long[] copy = new long[sharedHalo.length()];
+
+            for (int i = 0; i < copy.length; ++i) {
+                copy[i] = sharedHalo.get(i);
+            }
+
+            return copy;
+        }
+    }
+
+    private static void mark(byte[] kinds, int base, long bits, byte kind) {
+        while (bits != 0) {
+            kinds[base | Long.numberOfTrailingZeros(bits)] = kind;
+            bits &= bits - 1;
+        }
+    }
+
+    /**
+     * This returns the index of every block that is not NONE, ordered by
+     * 16-block-high chunk section from the bottom up, then by column, then by
+     * y. Writing blocks in this order keeps the writes for each section
+     * together.
+     *
+     * @return A new array of block indices.
+     */
+    public int[] getIndicesBySection() {
+        int[] indices = new int[classifiedCount];
+        int next = 0;
+
+        for (int section = 0; section < SECTIONS; ++section) {
+            if ((occupiedSections & (1 << section)) == 0) {
+                continue;
+            }
+
+            for (int column = 0; column < 256; ++column) {
+                int base = (column << 8) | (section << 4);
+
+                for (int y = 0; y < 16; ++y) {
+                    if (kinds[base | y] != NONE) {
+                        indices[next++] = base | y;
+                    }
+                }
+            }
+        }
+
+        return indices;
+    }
+
+    /**
+     * This returns the classification of a block, given its index.
+     *
+     * @param index The index of the block, from 0 to VOLUME-1.
+     * @return The kind of block, such as NONE or WALL.
+     */
+    public byte get(int index) {
+        return kinds[index];
+    }
+
+    /**
+     * This returns the classification of a block, given its world
+     * co-ordinates. Blocks outside the chunk are NONE.
+     *
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The kind of block, such as NONE or WALL.
+     */
+    public byte get(int x, int y, int z) {
+        int lx = x - minX;
+        int lz = z - minZ;
+
+        if (lx >= 0 && lx < 16 && lz >= 0 && lz < 16 && y >= 0 && y < ChunkMaskSpace.HEIGHT) {
+            return kinds[(((lx << 4) | lz) << 8) | y];
+        }
+
+        return NONE;
+    }
+
+    /**
+     * This returns the world x co-ordinate of the block at an index.
+     *
+     * @param index The index of the block.
+     * @return The x co-ordinate.
+     */
+    public int getX(int index) {
+        return minX + (index >>> 12);
+    }
+
+    /**
+     * This returns the y co-ordinate of the block at an index.
+     *
+     * @param index The index of the block.
+     * @return The y co-ordinate.
+     */
+    public int getY(int index) {
+        return index & (ChunkMaskSpace.HEIGHT - 1);
+    }
+
+    /**
+     * This returns the world z co-ordinate of the block at an index.
+     *
+     * @param index The index of the block.
+     * @return The z co-ordinate.
+     */
+    public int getZ(int index) {
+        return minZ + ((index >>> 8) & 15);
+    }
+}
@@ -0,0 +1,397 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import org.bukkit.*;
+import org.bukkit.block.*;
+import org.bukkit.entity.EntityType;
+import org.bukkit.inventory.*;
+
+/**
+ * ChunkEditPlan records the changes we mean to make to one chunk, so that we
+ * can work them out on another thread and then make them on the main thread,
+ * where Bukkit wants block changes made.
+ *
+ * The plan reads the chunk through a ChunkSnapshot taken when the plan was
+ * made, biomes included, with our own changes laid over it; so code that
+ * builds a plan sees its own changes, just as if it were changing the world
+ * directly. Each changed block is stored as a small index into a palette of
+ * block states, and chests and mob spawners get a separate descriptor of
+ * their contents.
+ *
+ * apply() makes the changes in the same way the planning code would have,
+ * with setType() and then setData() only if the data was set; it visits the
+ * blocks one chunk section at a time, bottom up.
+ *
+ * @author DanJ
+ */
+public final class ChunkEditPlan {
+
+    private static final int HEIGHT = ChunkMaskSpace.HEIGHT;
+    private static final int VOLUME = 16 * 16 * HEIGHT;
+    private final World world;
+    private final ChunkSnapshot snapshot;
+    private final int chunkX, chunkZ;
+    private final int minX, minZ;
+    // edits[index] is 0 for an unchanged block, or 1 + an index into palette.
+    // indices here are by y, then z, then x, so a section is one run.
+    private final char[] edits = new char[VOLUME];
+    private int[] palette = new int[16];
+    private int paletteSize = 0;
+    private int editCount = 0;
+    private final Map<Integer, TileDescriptor> tiles = Maps.newHashMap();
+
+    /**
+     * This creates an empty plan for a chunk; this must be called on the main
+     * thread, since it takes a snapshot of the chunk. The plan itself can be
+     * filled in on any one thread.
+     *
+     * @param chunk The chunk the plan will change.
+     */
+    public ChunkEditPlan(Chunk chunk) {
+        this.world = chunk.getWorld();
+        // the plain snapshot has no biomes, and getBiome() needs them.
+        this.snapshot = chunk.getChunkSnapshot(false, true, false);
+        this.chunkX = chunk.getX();
+        this.chunkZ = chunk.getZ();
+        this.minX = chunkX * 16;
+        this.minZ = chunkZ * 16;
+    }
+
+    /**
+     * This returns the world the plan applies to.
+     *
+     * @return The world of the chunk.
+     */
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * This returns the position of the chunk the plan applies to.
+     *
+     * @return The chunk position.
+     */
+    public ChunkPosition getPosition() {
+        return new ChunkPosition(chunkX, chunkZ, world);
+    }
+
+    /**
+     * This returns the number of blocks the plan will change.
+     *
+     * @return The count of changed blocks.
+     */
+    public int getEditCount() {
+        return editCount;
+    }
+
+    /**
+     * This returns the biome of a column of the chunk, as it was when the
+     * plan was made.
+     *
+     * @param x The world x co-ordinate of the column.
+     * @param z The world z co-ordinate of the column.
+     * @return The biome.
+     */
+    public Biome getBiome(int x, int z) {
+        return snapshot.getBiome(x - minX, z - minZ);
+    }
+
+    ////////////////////////////////
+    // Reading and Writing
+    //
+    /**
+     * This returns the type of a block, including any change this plan makes
+     * to it. Blocks outside the chunk are reported as AIR.
+     *
+     * @param x The world x co-ordinate of the block.
+     * @param y The y co-ordinate of the block.
+     * @param z The world z co-ordinate of the block.
+     * @return The type of the block.
+     */
+    public Material getType(int x, int y, int z) {
+        int index = indexOf(x, y, z);
+
+        if (index < 0) {
+            return Material.AIR;
+        }
+
+        char edit = edits[index];
+
+        if (edit != 0) {
+            return Material.getMaterial(stateTypeId(palette[edit - 1]));
+        }
+
+        return Material.getMaterial(snapshot.getBlockTypeId(x - minX, y, z - minZ));
+    }
+
+    /**
+     * This changes the type of a block, as Block.setType() does; this resets
+     * the data of the block to its default. Blocks outside the chunk are
+     * ignored.
+     *
+     * @param x The world x co-ordinate of the block.
+     * @param y The y co-ordinate of the block.
+     * @param z The world z co-ordinate of the block.
+     * @param type The new type of the block.
+     */
+    public void setType(int x, int y, int z, Material type) {
+        int index = indexOf(x, y, z);
+
+        if (index >= 0) {
+            put(index, state(type.getId(), false, (byte) 0));
+
+            TileDescriptor tile = tiles.get(index);
+            if (tile != null && tile.getType() != type) {
+                tiles.remove(index);
+            }
+        }
+    }
+
+    /**
+     * This changes the type of a block, and then its data, as
+     * Block.setType() followed by Block.setData() does.
+     *
+     * @param x The world x co-ordinate of the block.
+     * @param y The y co-ordinate of the block.
+     * @param z The world z co-ordinate of the block.
+     * @param type The new type of the block.
+     * @param data The new data of the block.
+     */
+    public void setTypeAndData(int x, int y, int z, Material type, byte data) {
+        setType(x, y, z, type);
+
+        int index = indexOf(x, y, z);
+        if (index >= 0) {
+            put(index, state(type.getId(), true, data));
+        }
+    }
+
+    /**
+     * This places a chest, and returns its contents so you can fill it. If
+     * there's already a chest there, you get its contents to add to.
+     *
+     * @param x The world x co-ordinate of the chest.
+     * @param y The y co-ordinate of the chest.
+     * @param z The world z co-ordinate of the chest.
+     * @return The contents of the chest.
+     */
+    public ChestContents placeChest(int x, int y, int z) {
+        setType(x, y, z, Material.CHEST);
+
+        int index = indexOf(x, y, z);
+        if (index < 0) {
+            // outside the chunk; the contents go nowhere.
+            return new ChestContents();
+        }
+
+        TileDescriptor tile = tiles.get(index);
+        if (tile instanceof ChestContents) {
+            return (ChestContents) tile;
+        }
+
+        ChestContents contents = new ChestContents();
+        tiles.put(index, contents);
+        return contents;
+    }
+
+    /**
+     * This sets the creature a mob spawner spawns; the spawner block must
+     * already be placed.
+     *
+     * @param x The world x co-ordinate of the spawner.
+     * @param y The y co-ordinate of the spawner.
+     * @param z The world z co-ordinate of the spawner.
+     * @param spawnedType The creature to spawn.
+     */
+    public void setSpawnedType(int x, int y, int z, EntityType spawnedType) {
+        int index = indexOf(x, y, z);
+
+        if (index >= 0 && getType(x, y, z) == Material.MOB_SPAWNER) {
+            tiles.put(index, new SpawnerType(spawnedType));
+        }
+    }
+
+    ////////////////////////////////
+    // Applying
+    //
+    /**
+     * This makes the changes to the world; this must be called on the main
+     * thread.
+     */
+    public void apply() {
+        Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+
+        for (int index = 0; index < VOLUME; ++index) {
+            char edit = edits[index];
+
+            if (edit != 0) {
+                int state = palette[edit - 1];
+                Block block = chunk.getBlock(localX(index), localY(index), localZ(index));
+                block.setType(Material.getMaterial(stateTypeId(state)));
+
+                if (stateHasData(state)) {
+                    block.setData(stateData(state));
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, TileDescriptor> e : tiles.entrySet()) {
+            int index = e.getKey();
+            Block block = chunk.getBlock(localX(index), localY(index), localZ(index));
+            e.getValue().apply(block);
+        }
+    }
+
+    ////////////////////////////////
+    // Tile Entities
+    //
+    /**
+     * This is the base for the extra data we keep for chests and spawners.
+     */
+    private static abstract class TileDescriptor {
+
+        public abstract Material getType();
+
+        public abstract void apply(Block block);
+    }
+
+    /**
+     * This class holds the items to put in a chest, slot by slot.
+     */
+    public static final class ChestContents extends TileDescriptor {
+
+        private final ItemStack[] items = new ItemStack[27];
+
+        /**
+         * This puts an item in a slot, replacing any item already there.
+         *
+         * @param slot The slot, from 0 to 26.
+         * @param item The item to put there.
+         */
+        public void setItem(int slot, ItemStack item) {
+            items[slot] = item;
+        }
+
+        @Override
+        public Material getType() {
+            return Material.CHEST;
+        }
+
+        @Override
+        public void apply(Block block) {
+            BlockState state = block.getState();
+
+            if (state instanceof Chest) {
+                Inventory inv = ((Chest) state).getBlockInventory();
+
+                for (int slot = 0; slot < items.length; ++slot) {
+                    if (items[slot] != null) {
+                        inv.setItem(slot, items[slot]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This class holds the creature a spawner spawns.
+     */
+    private static final class SpawnerType extends TileDescriptor {
+
+        private final EntityType spawnedType;
+
+        public SpawnerType(EntityType spawnedType) {
+            this.spawnedType = Preconditions.checkNotNull(spawnedType);
+        }
+
+        @Override
+        public Material getType() {
+            return Material.MOB_SPAWNER;
+        }
+
+        @Override
+        public void apply(Block block) {
+            BlockState state = block.getState();
+
+            if (state instanceof CreatureSpawner) {
+                ((CreatureSpawner) state).setSpawnedType(spawnedType);
+                state.update();
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private void put(int index, int state) {
+        if (edits[index] == 0) {
+            ++editCount;
+        }
+
+        edits[index] = (char) (paletteIndexOf(state) + 1);
+    }
+
+    private int paletteIndexOf(int state) {
+        for (int i = 0; i < paletteSize; ++i) {
+            if (palette[i] == state) {
+                return i;
+            }
+        }
+
+        if (paletteSize == palette.length) {
+            palette = Arrays.copyOf(palette, paletteSize * 2);
+        }
+
+        palette[paletteSize] = state;
+        return paletteSize++;
+    }
+
+    /**
+     * This returns the index of a block in the edits array, or -1 if the
+     * block is not in this chunk.
+     */
+    private int indexOf(int x, int y, int z) {
+        int lx = x - minX;
+        int lz = z - minZ;
+
+        if (lx >= 0 && lx < 16 && lz >= 0 && lz < 16 && y >= 0 && y < HEIGHT) {
+            return (y << 8) | (lz << 4) | lx;
+        }
+
+        return -1;
+    }
+
+    private static int localX(int index) {
+        return index & 15;
+    }
+
+    private static int localY(int index) {
+        return index >>> 8;
+    }
+
+    private static int localZ(int index) {
+        return (index >>> 4) & 15;
+    }
+
+    /**
+     * A block state packs the type id, a flag saying if the data was set,
+     * and the data, into an int.
+     */
+    private static int state(int typeId, boolean hasData, byte data) {
+        return (typeId << 5) | (hasData ? 16 : 0) | (data & 15);
+    }
+
+    private static int stateTypeId(int state) {
+        return state >>> 5;
+    }
+
+    private static boolean stateHasData(int state) {
+        return (state & 16) != 0;
+    }
+
+    private static byte stateData(int state) {
+        return (byte) (state & 15);
+    }
+}
@@ -0,0 +1,75 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+
+/**
+ * ChunkInfoPacking packs the OriginalChunkInfo data we keep for each chunk,
+ * so it can be stored without any objects per chunk. A chunk's x and z are
+ * packed into a long key, and its highestBlockY and nodeY into an int value;
+ * MISSING is the value that stands for no info at all. ChunkInfoStore keeps
+ * the values in memory, and ScheduleShardFile writes them to disk.
+ *
+ * @author DanJ
+ */
+public final class ChunkInfoPacking {
+
+    /**
+     * This is the value that stands for a chunk with no info; it can't be a
+     * real value, since pack() won't produce it.
+     */
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    private ChunkInfoPacking() {
+    }
+
+    ////////////////////////////////
+    // Packing
+    //
+    /**
+     * This packs chunk co-ordinates into a key.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @return The key.
+     */
+    public static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * This packs the two heights we keep into an int; each must fit in a
+     * short, but may not be Short.MIN_VALUE.
+     *
+     * @param highestBlockY The highest block in the chunk.
+     * @param nodeY The height of the chunk's node.
+     * @return The packed value.
+     */
+    public static int pack(int highestBlockY, int nodeY) {
+        Preconditions.checkArgument(highestBlockY > Short.MIN_VALUE && highestBlockY <= Short.MAX_VALUE,
+                "highestBlockY is out of range.");
+        Preconditions.checkArgument(nodeY > Short.MIN_VALUE && nodeY <= Short.MAX_VALUE,
+                "nodeY is out of range.");
+
+        return (highestBlockY << 16) | (nodeY & 0xFFFF);
+    }
+
+    /**
+     * This extracts highestBlockY from a packed value.
+     *
+     * @param packed The value from pack().
+     * @return The highest block in the chunk.
+     */
+    public static int unpackHighestBlockY(int packed) {
+        return packed >> 16;
+    }
+
+    /**
+     * This extracts nodeY from a packed value.
+     *
+     * @param packed The value from pack().
+     * @return The height of the chunk's node.
+     */
+    public static int unpackNodeY(int packed) {
+        return (short) packed;
+    }
+}
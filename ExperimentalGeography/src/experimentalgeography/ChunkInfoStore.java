@@ -0,0 +1,221 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * ChunkInfoStore holds the packed OriginalChunkInfo data for the loaded
+ * regions of a ChunkPopulationSchedule, outside the Java heap. Each region
+ * gets a fixed block of 1024 int slots, one per chunk, in a direct buffer;
+ * a small directory maps each region to its block. A lookup is a directory
+ * lookup and then a read of one slot; there is no hashing per chunk and
+ * nothing to unpack but the int itself.
+ *
+ * The values are packed as ChunkInfoPacking.pack() packs them; an empty slot
+ * holds ChunkInfoPacking.MISSING. Blocks are given back by removeRegion(), so
+ * the buffer stays as big as the most regions we have had loaded at once,
+ * however much of the world has been explored.
+ *
+ * @author DanJ
+ */
+public final class ChunkInfoStore {
+
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+    private static final int SLOTS_PER_REGION = 1 << (REGION_SHIFT * 2);
+    private final Map<Long, Integer> directory = Maps.newHashMap();
+    private final Deque<Integer> freeBlocks = new ArrayDeque<Integer>();
+    private IntBuffer slots;
+    private int blockCount;
+    private int size;
+    // the last region we looked up; lookups mostly come in neighborhoods.
+    private long lastRegionKey;
+    private int lastBlock = -1;
+
+    /**
+     * This creates a store with room for the number of regions given; it
+     * grows if more are needed.
+     *
+     * @param expectedRegions The number of regions expected.
+     */
+    public ChunkInfoStore(int expectedRegions) {
+        Preconditions.checkArgument(expectedRegions > 0, "expectedRegions must be positive.");
+        this.slots = allocate(expectedRegions);
+    }
+
+    /**
+     * This returns the number of chunks in the store.
+     *
+     * @return The number of filled slots.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This returns the number of bytes the store has outside the heap.
+     *
+     * @return The size of the slot buffer, in bytes.
+     */
+    public long getByteSize() {
+        return 4L * slots.capacity();
+    }
+
+    /**
+     * This returns true if the store contains the chunk given.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @return True if the chunk is present.
+     */
+    public boolean contains(int x, int z) {
+        return get(x, z) != ChunkInfoPacking.MISSING;
+    }
+
+    /**
+     * This returns the packed value for a chunk.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @return The packed value, or ChunkInfoPacking.MISSING if the chunk is not
+     * present.
+     */
+    public int get(int x, int z) {
+        int block = findBlock(x >> REGION_SHIFT, z >> REGION_SHIFT);
+
+        if (block < 0) {
+            return ChunkInfoPacking.MISSING;
+        }
+
+        return slots.get(slotIndex(block, x, z));
+    }
+
+    /**
+     * This stores the data for a chunk, replacing any data already there.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @param highestBlockY The highest block in the chunk.
+     * @param nodeY The height of the chunk's node.
+     * @return True if the chunk was added, false if it was already present.
+     */
+    public boolean put(int x, int z, int highestBlockY, int nodeY) {
+        int value = ChunkInfoPacking.pack(highestBlockY, nodeY);
+        int block = findBlock(x >> REGION_SHIFT, z >> REGION_SHIFT);
+
+        if (block < 0) {
+            block = allocateBlock(x >> REGION_SHIFT, z >> REGION_SHIFT);
+        }
+
+        int index = slotIndex(block, x, z);
+        boolean added = slots.get(index) == ChunkInfoPacking.MISSING;
+        slots.put(index, value);
+
+        if (added) {
+            ++size;
+        }
+
+        return added;
+    }
+
+    /**
+     * This removes a chunk from the store.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @return True if the chunk was removed, false if it was not present.
+     */
+    public boolean remove(int x, int z) {
+        int block = findBlock(x >> REGION_SHIFT, z >> REGION_SHIFT);
+
+        if (block >= 0) {
+            int index = slotIndex(block, x, z);
+
+            if (slots.get(index) != ChunkInfoPacking.MISSING) {
+                slots.put(index, ChunkInfoPacking.MISSING);
+                --size;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This removes every chunk of a region, and gives its block back for
+     * another region to use.
+     *
+     * @param regionX The x co-ordinate of the region.
+     * @param regionZ The z co-ordinate of the region.
+     */
+    public void removeRegion(int regionX, int regionZ) {
+        Integer block = directory.remove(ChunkInfoPacking.key(regionX, regionZ));
+
+        if (block != null) {
+            int start = block * SLOTS_PER_REGION;
+
+            for (int i = start; i < start + SLOTS_PER_REGION; ++i) {
+                if (slots.get(i) != ChunkInfoPacking.MISSING) {
+                    --size;
+                }
+            }
+
+            freeBlocks.push(block);
+            lastBlock = -1;
+        }
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private int findBlock(int regionX, int regionZ) {
+        long key = ChunkInfoPacking.key(regionX, regionZ);
+
+        if (lastBlock >= 0 && key == lastRegionKey) {
+            return lastBlock;
+        }
+
+        Integer block = directory.get(key);
+
+        if (block == null) {
+            return -1;
+        }
+
+        lastRegionKey = key;
+        lastBlock = block;
+        return block;
+    }
+
+    private int allocateBlock(int regionX, int regionZ) {
+        if (freeBlocks.isEmpty()) {
+            if (blockCount == slots.capacity() / SLOTS_PER_REGION) {
+                IntBuffer grown = allocate(blockCount * 2);
+                slots.rewind();
+                grown.put(slots);
+                slots = grown;
+            }
+
+            freeBlocks.push(blockCount++);
+        }
+
+        int block = freeBlocks.pop();
+        int start = block * SLOTS_PER_REGION;
+
+        for (int i = start; i < start + SLOTS_PER_REGION; ++i) {
+            slots.put(i, ChunkInfoPacking.MISSING);
+        }
+
+        directory.put(ChunkInfoPacking.key(regionX, regionZ), block);
+        return block;
+    }
+
+    private static int slotIndex(int block, int x, int z) {
+        return block * SLOTS_PER_REGION + (((x & REGION_MASK) << REGION_SHIFT) | (z & REGION_MASK));
+    }
+
+    private static IntBuffer allocate(int regions) {
+        return ByteBuffer.allocateDirect(regions * SLOTS_PER_REGION * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
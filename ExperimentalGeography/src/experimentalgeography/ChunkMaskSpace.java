@@ -0,0 +1,275 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import org.bukkit.*;
+import org.bukkit.block.*;
+
+/**
+ * ChunkMaskSpace is a space confined to a single chunk, which keeps its blocks
+ * as a bitset instead of as Block objects. There is one bit for each block in
+ * the 16x256x16 chunk, so the whole thing takes 8K no matter how many blocks
+ * are in it.
+ *
+ * The bits are arranged by x, then z, then y; this is the same order that
+ * getBlocks() uses, so iterating the bits gives you blocks in that order too.
+ *
+ * @author DanJ
+ */
+public final class ChunkMaskSpace extends Space {
+
+    /**
+     * This is the height of the mask; blocks above or below this are simply
+     * not included.
+     */
+    public static final int HEIGHT = 256;
+    /**
+     * This is the number of longs needed to hold one column of the mask.
+     */
+    public static final int WORDS_PER_COLUMN = HEIGHT / 64;
+    private static final int WORD_COUNT = 16 * 16 * WORDS_PER_COLUMN;
+    private final World world;
+    private final int chunkX, chunkZ;
+    private final int minX, minZ;
+    private final long[] words;
+
+    /**
+     * This constructs a mask containing every block of 'source' that falls
+     * within the chunk given.
+     *
+     * @param chunk The chunk to limit the mask to.
+     * @param source The space whose blocks are to be collected.
+     */
+    public ChunkMaskSpace(Chunk chunk, Space source) {
+        this(chunk.getWorld(), chunk.getX(), chunk.getZ());
+        source.forEachBlock(new BlockAction() {
+            @Override
+            public void apply(int x, int y, int z, World world) {
+                if (world == ChunkMaskSpace.this.world) {
+                    add(x, y, z);
+                }
+            }
+        });
+    }
+
+    private ChunkMaskSpace(World world, int chunkX, int chunkZ) {
+        this.world = Preconditions.checkNotNull(world);
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minX = chunkX * 16;
+        this.minZ = chunkZ * 16;
+        this.words = new long[WORD_COUNT];
+    }
+
+    /**
+     * This returns the world the mask is in.
+     *
+     * @return The world of the chunk.
+     */
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * This returns the x co-ordinate of the chunk, in chunks, not blocks.
+     *
+     * @return The chunk x co-ordinate.
+     */
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    /**
+     * This returns the z co-ordinate of the chunk, in chunks, not blocks.
+     *
+     * @return The chunk z co-ordinate.
+     */
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * This returns true if the mask contains no blocks at all.
+     *
+     * @return True if no bit is set.
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * This returns the number of blocks in the mask; unlike forEachBlock(),
+     * there are no duplicates to worry about.
+     *
+     * @return The number of bits set.
+     */
+    public int size() {
+        int count = 0;
+
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+
+    private void add(int x, int y, int z) {
+        int lx = x - minX;
+        int lz = z - minZ;
+
+        if (lx >= 0 && lx < 16 && lz >= 0 && lz < 16 && y >= 0 && y < HEIGHT) {
+            int bit = indexOf(lx, y, lz);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z, World world) {
+        int lx = x - minX;
+        int lz = z - minZ;
+
+        if (lx >= 0 && lx < 16 && lz >= 0 && lz < 16 && y >= 0 && y < HEIGHT
+                && world == this.world) {
+            int bit = indexOf(lx, y, lz);
+            return (words[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void forEachBlock(BlockAction action) {
+        for (int w = 0; w < words.length; ++w) {
+            long word = words[w];
+
+            while (word != 0) {
+                int bit = (w << 6) | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+
+                action.apply(
+                        minX + (bit >>> 12),
+                        bit & (HEIGHT - 1),
+                        minZ + ((bit >>> 8) & 15),
+                        world);
+            }
+        }
+    }
+
+    /**
+     * A mask never has duplicates, so this is just forEachBlock().
+     */
+    @Override
+    public void forEachDistinctBlock(BlockAction action) {
+        forEachBlock(action);
+    }
+
+    /**
+     * This splits the mask into slabs of x co-ordinates; each slab is a mask
+     * of its own, and they do not overlap. Empty slabs are left out.
+     */
+    @Override
+    public List<Space> split(int parts) {
+        if (isEmpty()) {
+            return Collections.emptyList();
+        } else if (parts <= 1) {
+            return Collections.<Space>singletonList(this);
+        }
+
+        int slabs = Math.min(parts, 16);
+        int wordsPerX = 16 * WORDS_PER_COLUMN;
+        List<Space> pieces = Lists.newArrayList();
+
+        for (int i = 0; i < slabs; ++i) {
+            int fromX = i * 16 / slabs;
+            int toX = (i + 1) * 16 / slabs;
+            ChunkMaskSpace piece = new ChunkMaskSpace(world, chunkX, chunkZ);
+            System.arraycopy(words, fromX * wordsPerX, piece.words, fromX * wordsPerX, (toX - fromX) * wordsPerX);
+
+            if (!piece.isEmpty()) {
+                pieces.add(piece);
+            }
+        }
+
+        return pieces;
+    }
+
+    @Override
+    protected Set<Block> collectBlocks() {
+        return new BlockSetView();
+    }
+
+    private static int indexOf(int localX, int y, int localZ) {
+        return (((localX << 4) | localZ) << 8) | y;
+    }
+
+    /**
+     * This class is a read-only set of blocks that reads the mask's bits; it
+     * creates a Block only as the iterator reaches it, and does not keep it.
+     */
+    private final class BlockSetView extends AbstractSet<Block> {
+
+        @Override
+        public int size() {
+            return ChunkMaskSpace.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (o instanceof Block) {
+                Block block = (Block) o;
+                return ChunkMaskSpace.this.contains(block.getX(), block.getY(), block.getZ(), block.getWorld());
+            }
+
+            return false;
+        }
+
+        @Override
+        public Iterator<Block> iterator() {
+            return new Iterator<Block>() {
+                private int wordIndex = -1;
+                private long word = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0) {
+                        if (++wordIndex >= words.length) {
+                            wordIndex = words.length;
+                            return false;
+                        }
+
+                        word = words[wordIndex];
+                    }
+
+                    return true;
+                }
+
+                @Override
+                public Block next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    int bit = (wordIndex << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    return world.getBlockAt(
+                            minX + (bit >>> 12),
+                            bit & (HEIGHT - 1),
+                            minZ + ((bit >>> 8) & 15));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -8,6 +8,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.regex.*;
 import org.bukkit.*;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.*;
@@ -17,56 +20,362 @@ import org.bukkit.scheduler.*;
  * populate any chunk only when it, and all its neighbors, have loaded with
  * vanilla content.
  *
+ * We keep count of how many of each chunk's neighbors have loaded, bumping the
+ * counts as each chunk is scheduled; a pending chunk is ready the moment its
+ * count reaches 8, so next() never has to look at the pending chunks that are
+ * not ready.
+ *
+ * Each world has its own schedule, with its own seed and its own file in the
+ * world's folder, so the worlds don't share tables or slow each other down.
+ *
+ * A chunk's original info is needed only to populate that chunk and its 8
+ * neighbors; once all 9 have been populated we drop it. So we keep only the
+ * frontier of the explored area, not all of it. We don't need to remember
+ * which chunks were dropped; see rebuildPopulatedCounts().
+ *
+ * The schedule is saved in shards, one file per region of 32x32 chunks, in an
+ * 'experimentalgeography' folder inside the world folder; see
+ * ScheduleShardFile for their format. Older text shards are still read. A region is loaded
+ * the first time we need any chunk in it, and the least recently used regions
+ * are unloaded once we have too many; only regions that have changed are
+ * written out. Each shard holds everything we know about its chunks,
+ * including their counts, so a region can be loaded without its neighbors.
+ *
+ * Between saves, each change is appended to a ScheduleJournal instead; when we
+ * start up, we load the shards and replay the journal over them. Saving is
+ * a compaction: it writes the dirty shards and starts a new, empty journal.
+ * Since the journal's records can touch any region, the shards and the journal
+ * must always match; so we never write one shard by itself, and unloading a
+ * dirty region compacts everything. See save() for how we make this safe
+ * against crashes.
+ *
+ * Compaction happens mostly on a background thread. The main thread copies
+ * each dirty region into a RegionSnapshot, which is just an array of longs,
+ * and the background thread encodes and writes the shards from those.
+ *
  * @author DanJ
  */
 public class ChunkPopulationSchedule {
 
+    /**
+     * This is the file that held the schedule for all worlds, before each
+     * world had its own; we read it if the world's own files are missing.
+     */
+    private static final File LEGACY_SCHEDULE_FILE = new File("experimentalgeography.txt");
+    /**
+     * This is the size of a region, in chunks, as a shift.
+     */
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+    /**
+     * This is the most regions we keep loaded at once.
+     */
+    private static final int MAX_LOADED_REGIONS = 64;
+    /**
+     * This is how big the journal may grow before saveLater() compacts it.
+     */
+    private static final long COMPACTION_THRESHOLD_BYTES = 1024 * 1024;
+    /**
+     * This matches the name of a shard written for some generation, but not
+     * yet renamed into place.
+     */
+    private static final Pattern PENDING_SHARD_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.bin\\.(\\d+)(\\.tmp)?");
+    private final String worldName;
     private final long seed;
     private final Plugin plugin;
-    private final File chunkScheduleFile;
-    private final Map<ChunkPosition, OriginalChunkInfo> originalChunkInfos = Maps.newHashMap();
+    private final File scheduleDirectory;
+    private final ScheduleJournal journal;
+    // true while we replay the journal; we don't journal the changes we
+    // replay, and we don't unload regions, since we can't compact yet.
+    private boolean replaying;
+    // the loaded regions, least recently used first. The tables below hold
+    // entries only for chunks in these regions.
+    private final LinkedHashMap<Long, Region> regions = new LinkedHashMap<Long, Region>(16, 0.75f, true);
+    // the original chunk infos; these are packed into fixed slots outside
+    // the heap, one block per loaded region, and unpacked by
+    // getOriginalChunkInfo().
+    private final ChunkInfoStore originalChunkInfos = new ChunkInfoStore(MAX_LOADED_REGIONS + 1);
     private final Set<ChunkPosition> pendingChunks = Sets.newHashSet();
+    // the number of loaded neighbors of each chunk; chunks are dropped from
+    // this once they are ready.
+    private final Multiset<ChunkPosition> loadedNeighborCounts = HashMultiset.create();
+    private final List<ChunkPosition> readyChunks = Lists.newArrayList();
+    // the number of chunks populated among each chunk and its neighbors;
+    // chunks are dropped from this, and from originalChunkInfos, at 9.
+    private final Multiset<ChunkPosition> populatedCounts = HashMultiset.create();
+    // this puts the records of a shard, or of a snapshot, into the tables.
+    private final ScheduleShardFile.RecordSink recordLoader = new ScheduleShardFile.RecordSink() {
+        @Override
+        public void record(int x, int z, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+            ChunkPosition pos = new ChunkPosition(x, z, worldName);
+
+            if (info != ChunkInfoPacking.MISSING) {
+                originalChunkInfos.put(x, z,
+                        ChunkInfoPacking.unpackHighestBlockY(info),
+                        ChunkInfoPacking.unpackNodeY(info));
+            }
+
+            if (pending) {
+                pendingChunks.add(pos);
+            }
+
+            loadedNeighborCounts.add(pos, loadedNeighborCount);
+            populatedCounts.add(pos, populatedCount);
+        }
+    };
     private BukkitRunnable deferredSaver;
+    // the snapshots of dirty regions we have unloaded, waiting for the next
+    // save, and of the regions the save in flight is writing. A region loaded
+    // again before it is saved is loaded from these, not from its shard.
+    private final Map<Long, RegionSnapshot> unsavedRegions = Maps.newHashMap();
+    private Map<Long, RegionSnapshot> savingRegions = Collections.emptyMap();
+    private ExecutorService saver;
+    private Future<?> saveInFlight;
+    private long savingGeneration;
+    private boolean saveRequested;
+
+    public ChunkPopulationSchedule(Plugin plugin, World world) {
+        this(plugin, world.getName(), world.getSeed(), new File(world.getWorldFolder(), "experimentalgeography"));
+
+        if (!scheduleDirectory.exists()) {
+            File worldFile = new File(world.getWorldFolder(), "experimentalgeography.txt");
+            loadLegacy(worldFile.exists() ? worldFile : LEGACY_SCHEDULE_FILE);
 
-    public ChunkPopulationSchedule(Plugin plugin, long seed) {
-        this(plugin, seed, new File("experimentalgeography.txt"));
+            // anything the legacy file held is saved by now; if it held
+            // nothing for us, save() won't make the directory, so make it here
+            // so we don't read the legacy file again next time.
+            scheduleDirectory.mkdirs();
+        }
     }
 
-    public ChunkPopulationSchedule(Plugin plugin, long seed, File chunkScheduleFile) {
+    public ChunkPopulationSchedule(Plugin plugin, String worldName, long seed, File scheduleDirectory) {
+        this.worldName = Preconditions.checkNotNull(worldName);
         this.seed = seed;
         this.plugin = Preconditions.checkNotNull(plugin);
-        this.chunkScheduleFile = Preconditions.checkNotNull(chunkScheduleFile);
+        this.scheduleDirectory = Preconditions.checkNotNull(scheduleDirectory);
+        this.journal = new ScheduleJournal(new File(scheduleDirectory, "journal.bin"), seed);
+
+        replayJournal();
+    }
 
-        if (chunkScheduleFile.exists()) {
-            MapFileMap map = MapFileMap.read(chunkScheduleFile);
+    /**
+     * This loads the whole schedule from a file written before we had
+     * shards. Every region it touches is loaded and marked dirty, so the next
+     * save writes it out as shards.
+     */
+    private void loadLegacy(File file) {
+        if (file.exists()) {
+            MapFileMap map = MapFileMap.readLazily(file);
             long loadedSeed = map.getLong("seed");
 
             if (loadedSeed == seed) {
+                // the legacy file may hold other worlds' chunks too
+                List<OriginalChunkInfo> infos = Lists.newArrayList();
+
                 for (OriginalChunkInfo info : map.getList("loadedChunks", OriginalChunkInfo.class)) {
-                    originalChunkInfos.put(info.position, info);
+                    if (isInWorld(info.position)) {
+                        ChunkPosition pos = info.position;
+
+                        // the counts we rebuild reach one chunk beyond
+                        for (int dx = -1; dx <= 1; ++dx) {
+                            for (int dz = -1; dz <= 1; ++dz) {
+                                getRegion(pos.x + dx, pos.z + dz).dirty = true;
+                            }
+                        }
+
+                        putOriginalChunkInfo(info);
+                        infos.add(info);
+                    }
                 }
 
-                pendingChunks.addAll(map.getList("pendingChunks", ChunkPosition.class));
+                for (ChunkPosition pos : map.getList("pendingChunks", ChunkPosition.class)) {
+                    if (isInWorld(pos)) {
+                        pendingChunks.add(pos);
+                    }
+                }
+
+                for (OriginalChunkInfo info : infos) {
+                    countLoadedNeighbor(info.position);
+                }
+
+                for (ChunkPosition pos : pendingChunks) {
+                    checkReady(pos);
+                }
+
+                rebuildPopulatedCounts(infos);
+
+                // none of this is in the journal, so write it out now; we
+                // must not come back here if we die before it's written.
+                save();
+                finishSave(true);
+            }
+        }
+    }
+
+    /**
+     * This works out how many of each chunk's 9 chunks have been populated,
+     * after loading. A chunk we have that is not pending was populated. A
+     * chunk we don't have, but that is next to a populated one, must have
+     * loaded, since its neighbor was populated; so it must have been dropped,
+     * and it too was populated.
+     */
+    private void rebuildPopulatedCounts(List<OriginalChunkInfo> infos) {
+        for (OriginalChunkInfo info : infos) {
+            ChunkPosition pos = info.position;
+            boolean populated = !pendingChunks.contains(pos);
+            int count = 0;
+
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dz = -1; dz <= 1; ++dz) {
+                    ChunkPosition candidate = new ChunkPosition(pos.x + dx, pos.z + dz, worldName);
+
+                    if (originalChunkInfos.contains(candidate.x, candidate.z)) {
+                        if (!pendingChunks.contains(candidate)) {
+                            ++count;
+                        }
+                    } else if (populated) {
+                        ++count;
+                    }
+                }
+            }
+
+            if (count == 9) {
+                originalChunkInfos.remove(pos.x, pos.z);
+            } else if (count > 0) {
+                populatedCounts.setCount(pos, count);
             }
         }
     }
 
     /**
-     * This method saves the current state of the scheduler to a file; when we
-     * construct a new schedule later, we'll reload this state.
+     * This method starts compacting the journal into the shards, so that they
+     * hold the current state of the scheduler; when we construct a new
+     * schedule later, we'll reload this state. Only the regions that have
+     * changed are written. If a save is already in flight, this just asks for
+     * another once it is done, so saves never pile up.
+     *
+     * Here on the main thread we snapshot the dirty regions and mark the
+     * journal. The background thread then writes the shards under names that
+     * include the next generation number. Once they are written, finishSave()
+     * replaces the journal with one of that generation, holding just the
+     * records since the mark; that is the moment the new shards take effect.
+     * Only then are they renamed into place. If we die before the journal is
+     * replaced, the new shards are just deleted at startup, and the old shards
+     * and old journal are replayed; if we die after, the renaming is finished
+     * at startup.
      */
     public void save() {
-        MapFileMap map = new MapFileMap();
-        map.put("seed", seed);
-        map.put("loadedChunks", originalChunkInfos.values());
-        map.put("pendingChunks", pendingChunks);
-        MapFileMap.write(chunkScheduleFile, map);
+        finishSave(false);
+
+        if (saveInFlight != null) {
+            saveRequested = true;
+            return;
+        }
+
+        for (Region region : regions.values()) {
+            if (region.dirty) {
+                unsavedRegions.put(ChunkInfoPacking.key(region.x, region.z), snapshotRegion(region));
+                region.dirty = false;
+            }
+        }
+
+        if (unsavedRegions.isEmpty() && journal.getRecordCount() == 0) {
+            return;
+        }
+
+        final long generation = journal.getGeneration() + 1;
+        final List<RegionSnapshot> batch = Lists.newArrayList(unsavedRegions.values());
+        savingRegions = Maps.newHashMap(unsavedRegions);
+        unsavedRegions.clear();
+        journal.mark();
+        scheduleDirectory.mkdirs();
+
+        savingGeneration = generation;
+        saveInFlight = getSaver().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (RegionSnapshot snapshot : batch) {
+                    snapshot.write(getPendingRegionFile(snapshot.x, snapshot.z, generation));
+                }
+            }
+        });
     }
 
     /**
-     * This method arranges to call save(), in 5 seconds. If called repeatedly,
-     * only the first call counts- we don't keep deferring the save further and
-     * further.
+     * This completes the save in flight, if its shards have been written;
+     * this must be called on the main thread, which owns the journal. If the
+     * shards could not be written, we keep the old journal and will save the
+     * regions again next time.
+     *
+     * @param wait If true, we wait for the shards to be written; if false, we
+     * do nothing if they are not yet written.
+     */
+    private void finishSave(boolean wait) {
+        if (saveInFlight == null || (!wait && !saveInFlight.isDone())) {
+            return;
+        }
+
+        Future<?> future = saveInFlight;
+        saveInFlight = null;
+        boolean written = false;
+
+        try {
+            future.get();
+            written = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            plugin.getLogger().log(Level.SEVERE, "Interrupted while saving the population schedule.", e);
+        } catch (ExecutionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to save the population schedule.", e.getCause());
+        }
+
+        if (written) {
+            journal.commitMark(savingGeneration);
+
+            for (RegionSnapshot snapshot : savingRegions.values()) {
+                commitRegion(snapshot.x, snapshot.z, savingGeneration);
+            }
+        } else {
+            journal.discardMark();
+
+            for (Map.Entry<Long, RegionSnapshot> e : savingRegions.entrySet()) {
+                Region region = regions.get(e.getKey());
+
+                if (region != null) {
+                    region.dirty = true;
+                } else if (!unsavedRegions.containsKey(e.getKey())) {
+                    unsavedRegions.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        savingRegions = Collections.emptyMap();
+
+        if (saveRequested) {
+            saveRequested = false;
+            save();
+        }
+    }
+
+    private ExecutorService getSaver() {
+        if (saver == null) {
+            saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, String.format("ExperimentalGeography saver (%s)", worldName));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return saver;
+    }
+
+    /**
+     * This method arranges to flush the journal in 5 seconds, and to compact it
+     * then if it has grown large. If called repeatedly, only the first call
+     * counts- we don't keep deferring the save further and further.
      */
     public void saveLater() {
         if (deferredSaver == null) {
@@ -74,7 +383,13 @@ public class ChunkPopulationSchedule {
                 @Override
                 public void run() {
                     deferredSaver = null;
-                    save();
+                    finishSave(false);
+
+                    if (journal.getByteSize() > COMPACTION_THRESHOLD_BYTES) {
+                        save();
+                    } else {
+                        journal.flush();
+                    }
                 }
             };
 
@@ -82,6 +397,28 @@ public class ChunkPopulationSchedule {
         }
     }
 
+    /**
+     * This waits for any save in flight, and then flushes and closes the
+     * journal; we do this when shutting down. This does not start a new
+     * compaction, so it is quick; the journal is replayed when the schedule
+     * is next constructed.
+     */
+    public void close() {
+        if (deferredSaver != null) {
+            deferredSaver.cancel();
+            deferredSaver = null;
+        }
+
+        saveRequested = false;
+        finishSave(true);
+        journal.close();
+
+        if (saver != null) {
+            saver.shutdown();
+            saver = null;
+        }
+    }
+
     /**
      * This schedules a chunk to be populated later; we call this whenever a new
      * chunk loads. Once enough chunks are scheduled, they'll be returend from
@@ -90,9 +427,63 @@ public class ChunkPopulationSchedule {
      * @param pos A newly loaded chunk.
      */
     public void schedule(Chunk chunk) {
-        ChunkPosition pos = ChunkPosition.of(chunk);
-        originalChunkInfos.put(pos, new OriginalChunkInfo(chunk));
-        pendingChunks.add(pos);
+        schedule(new OriginalChunkInfo(chunk));
+    }
+
+    /**
+     * This schedules a chunk whose info was captured when it loaded; we use
+     * this for chunks that loaded before the schedule was ready.
+     *
+     * @param info The info of a newly loaded chunk.
+     */
+    public void schedule(OriginalChunkInfo info) {
+        ChunkPosition pos = info.position;
+        Preconditions.checkArgument(isInWorld(pos), "The chunk at %s is not in this schedule's world.", pos);
+
+        getRegion(pos.x, pos.z).dirty = true;
+
+        if (putOriginalChunkInfo(info)) {
+            if (!replaying) {
+                journal.appendScheduled(pos.x, pos.z, info.highestBlockY, info.nodeY);
+            }
+
+            pendingChunks.add(pos);
+            checkReady(pos);
+            countLoadedNeighbor(pos);
+        }
+    }
+
+    /**
+     * This bumps the count of loaded neighbors for each neighbor of 'pos',
+     * which has just loaded; any that become ready are added to readyChunks.
+     * This walks the neighbors directly, rather than using neighbors(), since
+     * we do this for every chunk.
+     */
+    private void countLoadedNeighbor(ChunkPosition pos) {
+        for (int dx = -1; dx <= 1; ++dx) {
+            for (int dz = -1; dz <= 1; ++dz) {
+                if (dx != 0 || dz != 0) {
+                    ChunkPosition neighbor = new ChunkPosition(pos.x + dx, pos.z + dz, pos.worldName);
+                    getRegion(neighbor.x, neighbor.z).dirty = true;
+
+                    if (loadedNeighborCounts.add(neighbor, 1) == 7) {
+                        checkReady(neighbor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This moves 'pos' to readyChunks if it is pending and all 8 of its
+     * neighbors have loaded. A chunk that is not yet loaded keeps its count,
+     * and is checked again when it is scheduled.
+     */
+    private void checkReady(ChunkPosition pos) {
+        if (loadedNeighborCounts.count(pos) == 8 && pendingChunks.contains(pos)) {
+            loadedNeighborCounts.setCount(pos, 0);
+            readyChunks.add(pos);
+        }
     }
 
     /**
@@ -101,23 +492,80 @@ public class ChunkPopulationSchedule {
      * loaded.
      *
      * The chunks returned are removed from the schedule, so they won't be
-     * returned again.
+     * returned again. They are sorted along a Z-order curve, so that chunks
+     * populated one after another are mostly near each other, and share
+     * cached segments and loaded chunk sections.
      *
      * @return The chunks that need to be populated now; may be empty.
      */
     public List<ChunkPosition> next() {
-        List<ChunkPosition> ready = Lists.newArrayList();
+        List<ChunkPosition> ready = Lists.newArrayList(readyChunks);
+        readyChunks.clear();
+        Collections.sort(ready, ChunkPosition.MORTON_ORDER);
+
+        for (ChunkPosition pos : ready) {
+            take(pos);
+        }
+
+        unloadExcessRegions();
+        return ready;
+    }
+
+    /**
+     * This removes a chunk from the pending chunks, as next() returns it.
+     */
+    private void take(ChunkPosition pos) {
+        if (!replaying) {
+            journal.appendTaken(pos.x, pos.z);
+        }
+
+        getRegion(pos.x, pos.z).dirty = true;
+        pendingChunks.remove(pos);
+    }
+
+    /**
+     * This records that a chunk returned by next() has been populated; once a
+     * chunk and all its neighbors are populated, we drop its original info.
+     * Call this once the chunk no longer needs the original infos of its
+     * neighbors.
+     *
+     * @param pos The chunk that was populated.
+     */
+    public void markPopulated(ChunkPosition pos) {
+        Preconditions.checkArgument(isInWorld(pos), "The chunk at %s is not in this schedule's world.", pos);
+        Preconditions.checkArgument(!pendingChunks.contains(pos), "The chunk at %s is still pending.", pos);
 
-        Set<ChunkPosition> loaded = originalChunkInfos.keySet();
+        journal.appendPopulated(pos.x, pos.z);
+        countPopulated(pos);
+        unloadExcessRegions();
+    }
 
-        for (ChunkPosition candidate : pendingChunks) {
-            if (loaded.containsAll(candidate.neighbors())) {
-                ready.add(candidate);
+    /**
+     * This bumps the populated counts of 'pos' and its neighbors, and drops
+     * the original info of any that reach 9.
+     */
+    private void countPopulated(ChunkPosition pos) {
+        for (int dx = -1; dx <= 1; ++dx) {
+            for (int dz = -1; dz <= 1; ++dz) {
+                ChunkPosition candidate = new ChunkPosition(pos.x + dx, pos.z + dz, worldName);
+                getRegion(candidate.x, candidate.z).dirty = true;
+
+                if (populatedCounts.add(candidate, 1) == 8) {
+                    populatedCounts.setCount(candidate, 0);
+                    originalChunkInfos.remove(candidate.x, candidate.z);
+                }
             }
         }
+    }
 
-        pendingChunks.removeAll(ready);
-        return ready;
+    /**
+     * This returns the number of chunks whose original info we have loaded;
+     * chunks in unloaded regions are not counted.
+     *
+     * @return The number of frontier chunks in loaded regions.
+     */
+    public int getLoadedChunkCount() {
+        return originalChunkInfos.size();
     }
 
     /**
@@ -127,16 +575,374 @@ public class ChunkPopulationSchedule {
      * @param pos The chunk whose data is needed.
      * @return The chunk info object for the chunk.
      * @throws IllegalArgumentException if the chunk specified has not yet
-     * loaded.
+     * loaded, or if it and its neighbors have all been populated.
      */
     public OriginalChunkInfo getOriginalChunkInfo(ChunkPosition pos) {
-        OriginalChunkInfo info = originalChunkInfos.get(pos);
+        int packed = ChunkInfoPacking.MISSING;
 
-        if (info == null) {
+        if (isInWorld(pos)) {
+            getRegion(pos.x, pos.z);
+            packed = originalChunkInfos.get(pos.x, pos.z);
+        }
+
+        if (packed == ChunkInfoPacking.MISSING) {
             throw new IllegalArgumentException(String.format(
                     "The chunk at %s has not loaded yet.",
                     pos));
         }
-        return info;
+
+        return new OriginalChunkInfo(pos,
+                ChunkInfoPacking.unpackHighestBlockY(packed),
+                ChunkInfoPacking.unpackNodeY(packed));
+    }
+
+    /**
+     * This returns the name of the world this schedule is for.
+     *
+     * @return The world name.
+     */
+    public String getWorldName() {
+        return worldName;
+    }
+
+    private boolean isInWorld(ChunkPosition pos) {
+        return worldName.equals(pos.worldName);
+    }
+
+    /**
+     * This stores the info for a chunk.
+     *
+     * @param info The info to store.
+     * @return True if the chunk is new, false if we already had its info.
+     */
+    private boolean putOriginalChunkInfo(OriginalChunkInfo info) {
+        ChunkPosition pos = info.position;
+        return originalChunkInfos.put(pos.x, pos.z, info.highestBlockY, info.nodeY);
+    }
+
+    ////////////////////////////////
+    // Regions
+    //
+    /**
+     * This class represents a loaded region; the data for its chunks is kept
+     * in the schedule's tables, not here.
+     */
+    private static final class Region {
+
+        public final int x, z;
+        public boolean dirty;
+
+        public Region(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+
+    /**
+     * This returns the region that contains a chunk, loading it if it is not
+     * loaded already. This also makes it the most recently used region.
+     *
+     * @param chunkX The x co-ordinate of the chunk.
+     * @param chunkZ The z co-ordinate of the chunk.
+     * @return The loaded region.
+     */
+    private Region getRegion(int chunkX, int chunkZ) {
+        int regionX = chunkX >> REGION_SHIFT;
+        int regionZ = chunkZ >> REGION_SHIFT;
+        Long key = ChunkInfoPacking.key(regionX, regionZ);
+        Region region = regions.get(key);
+
+        if (region == null) {
+            region = new Region(regionX, regionZ);
+            regions.put(key, region);
+            loadRegion(region);
+        }
+
+        return region;
+    }
+
+    private File getRegionFile(int regionX, int regionZ) {
+        return new File(scheduleDirectory, String.format("r.%d.%d.bin", regionX, regionZ));
+    }
+
+    private File getTextRegionFile(int regionX, int regionZ) {
+        return new File(scheduleDirectory, String.format("r.%d.%d.txt", regionX, regionZ));
+    }
+
+    /**
+     * This reads a region's shard into the tables; a region with no shard,
+     * or with a shard for some other seed, is just empty. If there's no binary
+     * shard, we'll read a text shard instead. A region that has a snapshot
+     * waiting to be saved is read from that instead.
+     */
+    private void loadRegion(Region region) {
+        File file = getRegionFile(region.x, region.z);
+        File textFile = getTextRegionFile(region.x, region.z);
+
+        Long key = ChunkInfoPacking.key(region.x, region.z);
+        RegionSnapshot snapshot = unsavedRegions.remove(key);
+
+        if (snapshot != null) {
+            // this region's changes are not saved yet, so it's still dirty.
+            snapshot.replay(recordLoader);
+            region.dirty = true;
+        } else if (savingRegions.containsKey(key)) {
+            savingRegions.get(key).replay(recordLoader);
+        } else if (file.exists()) {
+            ScheduleShardFile.read(file, seed, recordLoader);
+        } else if (textFile.exists()) {
+            MapFileMap map = MapFileMap.readLazily(textFile);
+
+            if (map.getLong("seed") == seed) {
+                for (OriginalChunkInfo info : map.getList("loadedChunks", OriginalChunkInfo.class)) {
+                    putOriginalChunkInfo(info);
+                }
+
+                pendingChunks.addAll(map.getList("pendingChunks", ChunkPosition.class));
+                loadedNeighborCounts.addAll(map.getList("loadedNeighborCounts", ChunkPosition.class));
+                populatedCounts.addAll(map.getList("populatedCounts", ChunkPosition.class));
+            }
+        }
+    }
+
+    private File getPendingRegionFile(int regionX, int regionZ, long generation) {
+        return new File(scheduleDirectory, String.format("r.%d.%d.bin.%d", regionX, regionZ, generation));
+    }
+
+    /**
+     * This copies a region's data out of the tables, so it can be written on
+     * another thread.
+     */
+    private RegionSnapshot snapshotRegion(Region region) {
+        long[] records = new long[REGION_SIZE * REGION_SIZE];
+        int count = 0;
+
+        for (ChunkPosition pos : getRegionChunks(region)) {
+            int info = originalChunkInfos.get(pos.x, pos.z);
+            boolean pending = pendingChunks.contains(pos);
+            int loadedNeighborCount = loadedNeighborCounts.count(pos);
+            int populatedCount = populatedCounts.count(pos);
+
+            if (info != ChunkInfoPacking.MISSING || pending || loadedNeighborCount != 0 || populatedCount != 0) {
+                int index = ((pos.x & (REGION_SIZE - 1)) << REGION_SHIFT) | (pos.z & (REGION_SIZE - 1));
+                records[count++] = RegionSnapshot.pack(index, info, pending, loadedNeighborCount, populatedCount);
+            }
+        }
+
+        return new RegionSnapshot(region.x, region.z, seed, Arrays.copyOf(records, count));
+    }
+
+    /**
+     * This class holds a copy of one region's data, taken on the main thread,
+     * that can be written to a shard on another. Each chunk's record is packed
+     * into a long: the info in the high half, then the chunk's index in the
+     * region, its pending flag and its two counts.
+     */
+    private static final class RegionSnapshot {
+
+        public final int x, z;
+        private final long seed;
+        private final long[] records;
+
+        public RegionSnapshot(int x, int z, long seed, long[] records) {
+            this.x = x;
+            this.z = z;
+            this.seed = seed;
+            this.records = records;
+        }
+
+        public static long pack(int index, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+            Preconditions.checkArgument(loadedNeighborCount < 16 && populatedCount < 16, "A count is out of range.");
+
+            return ((long) info << 32) | (index << 9) | (pending ? 256 : 0)
+                    | (loadedNeighborCount << 4) | populatedCount;
+        }
+
+        /**
+         * This passes each record to 'sink', as if it were read from a shard.
+         *
+         * @param sink The object to receive the records.
+         */
+        public void replay(ScheduleShardFile.RecordSink sink) {
+            int minX = x << REGION_SHIFT;
+            int minZ = z << REGION_SHIFT;
+
+            for (long record : records) {
+                int low = (int) record;
+                int index = low >>> 9;
+
+                sink.record(
+                        minX + (index >> REGION_SHIFT),
+                        minZ + (index & (REGION_SIZE - 1)),
+                        (int) (record >>> 32), (low & 256) != 0,
+                        (low >> 4) & 15, low & 15);
+            }
+        }
+
+        /**
+         * This writes the snapshot as a shard; this can be called on any
+         * thread. An empty region still gets a shard, so that it replaces the
+         * old one.
+         *
+         * @param file The file to write.
+         */
+        public void write(File file) {
+            final ScheduleShardFile.Writer writer = new ScheduleShardFile.Writer(seed, x, z);
+
+            replay(new ScheduleShardFile.RecordSink() {
+                @Override
+                public void record(int chunkX, int chunkZ, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+                    writer.add(chunkX, chunkZ, info, pending, loadedNeighborCount, populatedCount);
+                }
+            });
+
+            writer.write(file);
+        }
+    }
+
+    /**
+     * This renames a shard written by a RegionSnapshot into place, replacing any
+     * older shard; if the region has nothing left in it, we delete its shard
+     * instead. Any text shard is replaced by the binary one.
+     */
+    private void commitRegion(int regionX, int regionZ, long generation) {
+        File pendingFile = getPendingRegionFile(regionX, regionZ, generation);
+        File file = getRegionFile(regionX, regionZ);
+
+        if (!pendingFile.renameTo(file)) {
+            file.delete();
+
+            if (!pendingFile.renameTo(file)) {
+                throw new RuntimeException(String.format("Unable to replace %s.", file));
+            }
+        }
+
+        if (ScheduleShardFile.isEmpty(file)) {
+            file.delete();
+        }
+
+        getTextRegionFile(regionX, regionZ).delete();
+    }
+
+    /**
+     * This finishes off a compaction that was cut short. Shards written for
+     * the journal's generation are renamed into place; shards written for any
+     * other generation never took effect, and are deleted.
+     */
+    private void recoverPendingShards(long generation) {
+        File[] files = scheduleDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                Matcher m = PENDING_SHARD_NAME.matcher(file.getName());
+
+                if (m.matches()) {
+                    if (m.group(4) == null && Long.parseLong(m.group(3)) == generation) {
+                        commitRegion(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), generation);
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This replays the journal over the shards, to bring the schedule up to
+     * where it was when it was last used.
+     */
+    private void replayJournal() {
+        replaying = true;
+
+        try {
+            boolean intact = journal.replay(new ScheduleJournal.Replayer() {
+                @Override
+                public void begin(long generation) {
+                    recoverPendingShards(generation);
+                }
+
+                @Override
+                public void scheduled(int x, int z, int highestBlockY, int nodeY) {
+                    schedule(new OriginalChunkInfo(new ChunkPosition(x, z, worldName), highestBlockY, nodeY));
+                }
+
+                @Override
+                public void taken(int x, int z) {
+                    ChunkPosition pos = new ChunkPosition(x, z, worldName);
+                    readyChunks.remove(pos);
+                    take(pos);
+                }
+
+                @Override
+                public void populated(int x, int z) {
+                    countPopulated(new ChunkPosition(x, z, worldName));
+                }
+            });
+
+            if (!intact) {
+                plugin.getLogger().log(Level.WARNING,
+                        "The population schedule journal for {0} ended with a damaged record, which was discarded.",
+                        worldName);
+            }
+        } finally {
+            replaying = false;
+        }
+
+        unloadExcessRegions();
+    }
+
+    /**
+     * This unloads the least recently used regions until we have no more
+     * than MAX_LOADED_REGIONS; if they have changed, we start a compaction.
+     */
+    private void unloadExcessRegions() {
+        if (replaying) {
+            return;
+        }
+
+        finishSave(false);
+        boolean unloadedDirty = false;
+
+        while (regions.size() > MAX_LOADED_REGIONS) {
+            Region region = regions.values().iterator().next();
+            Long key = ChunkInfoPacking.key(region.x, region.z);
+
+            if (region.dirty) {
+                // we can't write this shard alone; see save(). We keep a
+                // snapshot for the next save.
+                unsavedRegions.put(key, snapshotRegion(region));
+                unloadedDirty = true;
+            }
+
+            regions.remove(key);
+            originalChunkInfos.removeRegion(region.x, region.z);
+
+            for (ChunkPosition pos : getRegionChunks(region)) {
+                pendingChunks.remove(pos);
+                loadedNeighborCounts.setCount(pos, 0);
+                populatedCounts.setCount(pos, 0);
+            }
+        }
+
+        if (unloadedDirty) {
+            save();
+        }
+    }
+
+    /**
+     * This returns the positions of every chunk in a region.
+     */
+    private List<ChunkPosition> getRegionChunks(Region region) {
+        List<ChunkPosition> chunks = Lists.newArrayListWithCapacity(REGION_SIZE * REGION_SIZE);
+        int minX = region.x << REGION_SHIFT;
+        int minZ = region.z << REGION_SHIFT;
+
+        for (int x = minX; x < minX + REGION_SIZE; ++x) {
+            for (int z = minZ; z < minZ + REGION_SIZE; ++z) {
+                chunks.add(new ChunkPosition(x, z, worldName));
+            }
+        }
+
+        return chunks;
     }
 }
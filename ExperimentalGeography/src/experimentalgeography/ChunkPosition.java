@@ -2,6 +2,7 @@ package experimentalgeography;
 
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.primitives.Longs;
 import java.util.*;
 import org.bukkit.*;
 import org.bukkit.entity.*;
@@ -177,6 +178,52 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
 
     ////////////////////////////////
     // Utility
+    /**
+     * This comparator orders chunk positions along a Z-order (Morton) curve,
+     * which interleaves the bits of x and z; chunks that are near each other
+     * mostly end up near each other in this order too.
+     */
+    public static final Comparator<ChunkPosition> MORTON_ORDER = new Comparator<ChunkPosition>() {
+        @Override
+        public int compare(ChunkPosition left, ChunkPosition right) {
+            // the keys are unsigned; flipping the top bit lets us compare
+            // them as signed longs.
+            int cmp = Longs.compare(
+                    left.getMortonKey() ^ Long.MIN_VALUE,
+                    right.getMortonKey() ^ Long.MIN_VALUE);
+
+            if (cmp != 0) {
+                return cmp;
+            }
+
+            return left.worldName.compareTo(right.worldName);
+        }
+    };
+
+    /**
+     * This returns the position of this chunk along a Z-order curve; this is
+     * an unsigned value, with the bits of x and z interleaved. The sign bits
+     * are flipped first, so negative co-ordinates come before positive ones.
+     *
+     * @return The Morton key of the chunk.
+     */
+    public long getMortonKey() {
+        return spreadBits(x ^ Integer.MIN_VALUE) | (spreadBits(z ^ Integer.MIN_VALUE) << 1);
+    }
+
+    /**
+     * This spreads the 32 bits of 'value' out to the even bits of a long.
+     */
+    private static long spreadBits(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+
     /**
      * This method modifies 'location' so that its world is 'newWorld'; the X
      * and Z co-ordinates are scaled if required.
@@ -211,6 +258,25 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
 
     ////////////////////////////////
     // MapFileMap Storage
+    /**
+     * This codec lets MapFileMap read chunk positions back without reflection.
+     */
+    public static final MapFileMap.Codec<ChunkPosition> CODEC = new MapFileMap.Codec<ChunkPosition>() {
+        @Override
+        public ChunkPosition decode(MapFileMap map) {
+            return new ChunkPosition(map);
+        }
+
+        @Override
+        public Map<?, ?> encode(ChunkPosition value) {
+            return value.toMap();
+        }
+    };
+
+    static {
+        MapFileMap.registerCodec(ChunkPosition.class, CODEC);
+    }
+
     public ChunkPosition(MapFileMap map) {
         this.x = map.getInteger("x");
         this.z = map.getInteger("z");
@@ -6,6 +6,7 @@ package experimentalgeography;
 
 import com.google.common.base.*;
 import java.util.*;
+import java.util.concurrent.Executor;
 import org.bukkit.*;
 import org.bukkit.inventory.*;
 import org.bukkit.block.*;
@@ -15,17 +16,24 @@ import org.bukkit.entity.EntityType;
  * This class contains the logic to populate a specific chunk with our content; there's a 'start' location somewhere in the chunk,
  * and then we also get the start locations for adjacent chunks; these are the 'ends', and we connect to 'start' to each 'end'.
  *
+ * The Connector is created on the main thread, where it takes a snapshot of the chunk. connect() and decorate() do not touch the
+ * world; they fill in a ChunkEditPlan instead, and can run on another thread. The plan is then applied on the main thread.
+ *
  * @author DanJ
  */
 public final class Connector {
 
-    private final Chunk target;
+    private final ChunkPosition position;
     private final World world;
+    private final int targetHash;
+    private final Location spawnLocation;
+    private final ChunkEditPlan plan;
     private final Biome biome;
     private final Location start;
     private final Location[] ends;
     private final Location[] surrounding;
     private final int surface;
+    private final SegmentCache segmentCache;
     private Material cornerBlocks;
     private byte cornerData;
     private Material edgeBlocks;
@@ -35,14 +43,18 @@ public final class Connector {
     private Material floorBlocks;
     private byte floorData;  //stone brick data 0=plain 1=mossy 2=cracked 3=chiseled
 
-    public Connector(Chunk target, Location start, Location[] ends, Location[] surrounding, int surface) {
-        this.target = Preconditions.checkNotNull(target);
+    public Connector(Chunk target, Location start, Location[] ends, Location[] surrounding, int surface, SegmentCache segmentCache) {
+        this.position = ChunkPosition.of(target);
         this.world = target.getWorld();
+        this.targetHash = target.hashCode();
+        this.spawnLocation = world.getSpawnLocation();
+        this.plan = new ChunkEditPlan(target);
         this.biome = start.getBlock().getBiome();
         this.start = Preconditions.checkNotNull(start);
         this.ends = Preconditions.checkNotNull(ends);
         this.surrounding = Preconditions.checkNotNull(surrounding);
         this.surface = surface;
+        this.segmentCache = Preconditions.checkNotNull(segmentCache);
         this.cornerBlocks = Material.SMOOTH_BRICK; //default cases for stuff
         this.cornerData = 0;
         this.edgeBlocks = Material.SMOOTH_BRICK;
@@ -53,26 +65,47 @@ public final class Connector {
         this.floorData = 0;  //stone brick data 0=plain 1=mossy 2=cracked 3=chiseled
     }
 
+    /**
+     * This method returns the plan that connect() and decorate() fill in; apply it on the main thread once they are done.
+     *
+     * @return The edits to make to the target chunk.
+     */
+    public ChunkEditPlan getPlan() {
+        return plan;
+    }
+
     /**
      * This method actually connects the start location to the ends, but updates only blocks in the pitBlock chunk. Here is where
      * we will grind out the tunnel variations.
      */
     public void connect() {
+        connect(null, 1);
+    }
+
+    /**
+     * This method connects the start location to the ends like connect(), but lets the threads of 'helpers' help to work out
+     * the shape of the tunnels; when they are busy with other chunks, this thread just does it all itself.
+     *
+     * @param helpers The executor whose threads may help, or null.
+     * @param parts The number of parts to split the work into.
+     */
+    public void connect(Executor helpers, int parts) {
         Space space = getConnectedSpace();
         Random random = new Random();
-        Space inTarget = space.withinChunk(target);
+        ChunkClassification classification = ChunkClassification.of(space, world, position.x, position.z, helpers, parts);
         //what is left when replacing blocks
-        Block centerBlock = target.getBlock(8, 8, 8);
-        assignWallSurfaces(centerBlock.getBiome());
+        int centerX = position.x * 16 + 8;
+        int centerZ = position.z * 16 + 8;
+        assignWallSurfaces(plan.getBiome(centerX, centerZ));
         //for this tunnel, what materials are being used
 
-        int spawnDistance = (int) Math.cbrt(centerBlock.getLocation().distance(this.world.getSpawnLocation()));
+        int spawnDistance = (int) Math.cbrt(new Location(world, centerX, 8, centerZ).distance(spawnLocation));
         int lightingFactor = (int) Math.cbrt((this.biome.ordinal()));
         int lootFactor = (int) Math.cbrt(this.biome.ordinal());
         int lootBoost = (int) Math.cbrt(this.biome.ordinal());
         //base commonness of lights and chests: higher is sparser. Down low, it's darker but there are still chests
 
-        int chiaroscuro = (target.hashCode() % 10) - 5;
+        int chiaroscuro = (targetHash % 10) - 5;
         //we have a plus-minus factor that's random-ish
         lightingFactor += chiaroscuro;
         lootFactor -= (chiaroscuro * 3);
@@ -87,192 +120,177 @@ public final class Connector {
         lootFactor = Math.abs(lootFactor) + 11 + (int) Math.sqrt(spawnDistance);
         //We prevent the numbers from getting silly by limiting them here.
 
-        for (Block block : inTarget.getBlocks()) {
-            int x = block.getX();
-            int y = block.getY();
-            int z = block.getZ();
+        for (int index : classification.getIndicesBySection()) {
+            byte kind = classification.get(index);
 
-            if (space.contains(x, y, z, world)) {
+            if (kind != ChunkClassification.NONE) {
                 //we are in the area being turned to tunnels
-                int interiorNeighborCount
-                        = (space.contains(x, y - 1, z, world) ? 1 : 0)
-                        + (space.contains(x, y + 1, z, world) ? 1 : 0)
-                        + (space.contains(x + 1, y, z, world) ? 1 : 0)
-                        + (space.contains(x - 1, y, z, world) ? 1 : 0)
-                        + (space.contains(x, y, z + 1, world) ? 1 : 0)
-                        + (space.contains(x, y, z - 1, world) ? 1 : 0);
+                int x = classification.getX(index);
+                int y = classification.getY(index);
+                int z = classification.getZ(index);
                 //we have four basic conditions represented by number of neighbor also-tunnel blocks
-                switch (interiorNeighborCount) {
-                    case 3:
+                switch (kind) {
+                    case ChunkClassification.CORNER:
                         if (cornerBlocks == Material.SMOOTH_BRICK) {
                             cornerData = (byte) random.nextInt(4);
                         }
-                        block.setType(cornerBlocks);
-                        block.setData(cornerData);
+                        plan.setTypeAndData(x, y, z, cornerBlocks, cornerData);
                         break;
-                    case 4:
+                    case ChunkClassification.EDGE:
                         if (edgeBlocks == Material.SMOOTH_BRICK) {
                             edgeData = (byte) random.nextInt(3);
                         }
-                        block.setType(edgeBlocks);
-                        block.setData(edgeData);
+                        plan.setTypeAndData(x, y, z, edgeBlocks, edgeData);
+                        break;
+                    case ChunkClassification.WALL:
+                        //we are not a floor section
+                        if (plan.getType(x, y, z) == Material.AIR) {
+                            //contains air. We will not make unnecessary wall sections
+                        } else {
+                            if (wallBlocks == Material.SMOOTH_BRICK) {
+                                wallData = (byte) random.nextInt(3);
+                            }
+                            plan.setTypeAndData(x, y, z, wallBlocks, wallData);
+                        }
                         break;
-                    case 5:
-                        if (space.contains(x, y - 1, z, world)) {
-                            //we are not a floor section
-                            if (block.getType() == Material.AIR) {
-                                //contains air. We will not make unnecessary wall sections
+                    case ChunkClassification.FLOOR:
+                        if (floorBlocks == Material.SMOOTH_BRICK) {
+                            floorData = (byte) random.nextInt(3);
+                        }
+                        if ((x % lightingFactor == 0) && (z % lightingFactor == 0)) {
+                            if (this.biome == biome.OCEAN || this.biome == biome.DEEP_OCEAN) {
+                                plan.setType(x, y, z, Material.SEA_LANTERN);
                             } else {
-                                if (wallBlocks == Material.SMOOTH_BRICK) {
-                                    wallData = (byte) random.nextInt(3);
-                                }
-                                block.setType(wallBlocks);
-                                block.setData(wallData);
+                                plan.setType(x, y - 1, z, Material.REDSTONE_BLOCK);
+                                plan.setTypeAndData(x, y, z, Material.REDSTONE_LAMP_ON, (byte) 0);
+
                             }
                         } else {
-                            if (floorBlocks == Material.SMOOTH_BRICK) {
-                                floorData = (byte) random.nextInt(3);
-                            }
-                            if ((x % lightingFactor == 0) && (z % lightingFactor == 0)) {
-                                if (this.biome == biome.OCEAN || this.biome == biome.DEEP_OCEAN) {
-                                    block.setType(Material.SEA_LANTERN);
-                                } else {
-                                    block.setType(Material.REDSTONE_LAMP_ON);
-                                    block.getRelative(BlockFace.DOWN).setType(Material.REDSTONE_BLOCK);
-                                    block.setData((byte) 0);
+                            plan.setTypeAndData(x, y, z, floorBlocks, floorData);
+                        }
+                        if ((x % lootFactor == 0) && (z % lootFactor == 0)) {
+                            //here is where we make low value chests
+                            ChunkEditPlan.ChestContents inv = plan.placeChest(x, y + 1, z);
 
+                            int loot = ((y + 1) - chiaroscuro) - (11 + lootBoost);
+                            while (loot < 0) {
+                                loot += 1;
+                                int typeID = random.nextInt(453);
+                                if (typeID != 137
+                                        && typeID != 210
+                                        && typeID != 211
+                                        && typeID != 422
+                                        && typeID != 166
+                                        && typeID != 7
+                                        && typeID != 217
+                                        && typeID != 255
+                                        && typeID != 383
+                                        && typeID != 403
+                                        && typeID != 52) {
+                                    ItemStack itemstack = new ItemStack(typeID, 1);
+                                    if (itemstack != null) {
+                                        inv.setItem(random.nextInt(27), itemstack);
+                                    } //place weird random things in there, which might be overwritten. Low value chest
                                 }
-                            } else {
-                                block.setType(floorBlocks);
-                                block.setData(floorData);
                             }
-                            if ((x % lootFactor == 0) && (z % lootFactor == 0)) {
-                                //here is where we make low value chests
-                                block = block.getRelative(BlockFace.UP);
-                                block.setType(Material.CHEST);
-                                Chest chest = (Chest) block.getState();
-                                Inventory inv = chest.getBlockInventory();
 
-                                int loot = (block.getY() - chiaroscuro) - (11 + lootBoost);
-                                while (loot < 0) {
-                                    loot += 1;
-                                    int typeID = random.nextInt(453);
-                                    if (typeID != 137
-                                            && typeID != 210
-                                            && typeID != 211
-                                            && typeID != 422
-                                            && typeID != 166
-                                            && typeID != 7
-                                            && typeID != 217
-                                            && typeID != 255
-                                            && typeID != 383
-                                            && typeID != 403
-                                            && typeID != 52) {
-                                        ItemStack itemstack = new ItemStack(typeID, 1);
-                                        if (itemstack != null) {
-                                            inv.setItem(random.nextInt(27), itemstack);
-                                        } //place weird random things in there, which might be overwritten. Low value chest
+                            switch (loot) { //This intentionally falls through to lower value things, and they intentionally overwrite earlier entries.
+                                case 0:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.OBSIDIAN, 10)); //build wisely!
+                                    if (chiaroscuro > random.nextInt(20)) {
+                                        inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                                        break;
                                     }
-                                }
-
-                                switch (loot) { //This intentionally falls through to lower value things, and they intentionally overwrite earlier entries.
-                                    case 0:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.OBSIDIAN, 10)); //build wisely!
-                                        if (chiaroscuro > random.nextInt(20)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 1:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.DIAMOND, random.nextInt(16) + 1));
-                                    case 2:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.GOLD_INGOT, random.nextInt(32) + 1));
-                                    case 3:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_INGOT, random.nextInt(32) + 1));
-                                    case 4:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.FLINT_AND_STEEL, 1));
-                                    case 5:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.FISHING_ROD, 1));
-                                        if (chiaroscuro > random.nextInt(30)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 6:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_HELMET, 1));
-                                    case 7:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_LEGGINGS, 1));
-                                    case 8:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_CHESTPLATE, 1));
-                                    case 9:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_BOOTS, 1));
-                                        if (chiaroscuro > random.nextInt(40)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 10:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_SWORD, 1));
-                                    case 11:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_PICKAXE, 1));
-                                    case 12:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_AXE, 1));
-                                    case 13:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_SPADE, 1));
-                                        if (chiaroscuro > random.nextInt(50)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 14:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_SWORD, 1));
-                                    case 15:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_PICKAXE, 1));
-                                    case 16:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_AXE, 1));
-                                    case 17:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_SPADE, 1));
-                                        if (chiaroscuro > random.nextInt(60)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 18:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_HELMET, 1));
-                                    case 19:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_LEGGINGS, 1));
-                                    case 20:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_CHESTPLATE, 1));
-                                    case 21:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_BOOTS, 1));
-                                        if (chiaroscuro > random.nextInt(70)) {
-                                            inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                            break;
-                                        }
-                                    case 22:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.FURNACE, 1));
-                                    case 23:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.WOOD, random.nextInt(64) + 1));
-                                    case 24:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.STICK, random.nextInt(64) + 1));
-                                    case 25:
-                                        inv.setItem(random.nextInt(27), new ItemStack(Material.COBBLESTONE, random.nextInt(64) + 1));
-                                    case 26:
-                                    default: //fall through
+                                case 1:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.DIAMOND, random.nextInt(16) + 1));
+                                case 2:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.GOLD_INGOT, random.nextInt(32) + 1));
+                                case 3:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_INGOT, random.nextInt(32) + 1));
+                                case 4:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.FLINT_AND_STEEL, 1));
+                                case 5:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.FISHING_ROD, 1));
+                                    if (chiaroscuro > random.nextInt(30)) {
                                         inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
-                                } //this completes the low value chest
-                            }
+                                        break;
+                                    }
+                                case 6:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_HELMET, 1));
+                                case 7:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_LEGGINGS, 1));
+                                case 8:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_CHESTPLATE, 1));
+                                case 9:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.CHAINMAIL_BOOTS, 1));
+                                    if (chiaroscuro > random.nextInt(40)) {
+                                        inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                                        break;
+                                    }
+                                case 10:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_SWORD, 1));
+                                case 11:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_PICKAXE, 1));
+                                case 12:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_AXE, 1));
+                                case 13:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.IRON_SPADE, 1));
+                                    if (chiaroscuro > random.nextInt(50)) {
+                                        inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                                        break;
+                                    }
+                                case 14:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_SWORD, 1));
+                                case 15:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_PICKAXE, 1));
+                                case 16:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_AXE, 1));
+                                case 17:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.STONE_SPADE, 1));
+                                    if (chiaroscuro > random.nextInt(60)) {
+                                        inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                                        break;
+                                    }
+                                case 18:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_HELMET, 1));
+                                case 19:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_LEGGINGS, 1));
+                                case 20:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_CHESTPLATE, 1));
+                                case 21:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.LEATHER_BOOTS, 1));
+                                    if (chiaroscuro > random.nextInt(70)) {
+                                        inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                                        break;
+                                    }
+                                case 22:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.FURNACE, 1));
+                                case 23:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.WOOD, random.nextInt(64) + 1));
+                                case 24:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.STICK, random.nextInt(64) + 1));
+                                case 25:
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.COBBLESTONE, random.nextInt(64) + 1));
+                                case 26:
+                                default: //fall through
+                                    inv.setItem(random.nextInt(27), new ItemStack(Material.TORCH, random.nextInt(64) + 1));
+                            } //this completes the low value chest
                         }
                         break;
-                    case 6:
-                    case 7:
-                        if (block.getType() == Material.LOG
-                                || block.getType() == Material.CHEST
-                                || block.getType() == Material.GLOWSTONE
-                                || block.getType() == Material.REDSTONE_LAMP_ON
-                                || block.getType() == Material.SEA_LANTERN
-                                || block.getType() == Material.IRON_BLOCK
-                                || block.getType() == Material.LAPIS_BLOCK
-                                || block.getType() == Material.DIAMOND_BLOCK
-                                || block.getType() == Material.MOB_SPAWNER) {
+                    case ChunkClassification.AIR:
+                        Material type = plan.getType(x, y, z);
+                        if (type == Material.LOG
+                                || type == Material.CHEST
+                                || type == Material.GLOWSTONE
+                                || type == Material.REDSTONE_LAMP_ON
+                                || type == Material.SEA_LANTERN
+                                || type == Material.IRON_BLOCK
+                                || type == Material.LAPIS_BLOCK
+                                || type == Material.DIAMOND_BLOCK
+                                || type == Material.MOB_SPAWNER) {
                             //protected blocks
                         } else {
-                            block.setType(Material.AIR);
+                            plan.setType(x, y, z, Material.AIR);
                         }
                         break;
                 }
@@ -302,13 +320,26 @@ public final class Connector {
      * This method returns the space that connects two points; if the distance between them is too great, this may simply return
      * an empty space to indicate that there's no connection.
      *
+     * Segments that reach the target chunk, or the blocks around it, are taken from the segment cache; the neighboring chunks
+     * will want the same segments.
+     *
      * @param start The starting point of the space.
      * @param end The ending point of the space.
      * @return The space that connects these points, or an empty space.
      */
-    private static Space getConnectingSpace(Location start, Location end, int biome) {
+    private Space getConnectingSpace(Location start, Location end, int biome) {
         if (start.distance(end) > (biome / 3) + 7) {
-            return Space.linear(start, end, 4 + (biome / 23), 5 + (biome / 11)); //this is width and height
+            int width = 4 + (biome / 23); //this is width and height
+            int height = 5 + (biome / 11);
+            Space segment = Space.linear(start, end, width, height);
+            int minX = position.x * 16;
+            int minZ = position.z * 16;
+
+            if (segment.getBounds().intersects(minX - 1, minX + 16, minZ - 1, minZ + 16)) {
+                return segmentCache.getSegment(start, end, width, height);
+            }
+
+            return segment;
         }
         return Space.empty();
     }
@@ -322,17 +353,14 @@ public final class Connector {
         int x = (int) start.getX();
         int y = (int) (start.getY());
         int z = (int) start.getZ();
-        Block block;
-        if (ChunkPosition.of(target).contains(x, z) && world.getBlockAt(x, y, z).getType() == Material.AIR) {
+        int blockY;
+        if (position.contains(x, z) && plan.getType(x, y, z) == Material.AIR) {
             //double check: is the air block there, and has it already been filled by 'decorate()' from another direction
-            block = world.getBlockAt(x, y, z);
-            while ((block.getType() == Material.AIR) && block.getY() < 255) {
-                block = block.getRelative(BlockFace.UP);
+            blockY = y;
+            while ((plan.getType(x, blockY, z) == Material.AIR) && blockY < 255) {
+                blockY++;
             } //get up to the ceiling
-            if (block.getY() > 190) {
-                block.getLocation().setY(64.0);
-                //if we didn't even hit a roof skip right back down to 64
-            }
+            //if we didn't even hit a roof (above 190) we meant to skip right back down to 64, but this never moved the block
 
             switch (biome) {
                 case PLAINS://1
@@ -479,40 +507,37 @@ public final class Connector {
             } //or pillars of resources/indications of what the place is about
 
             //here we tack on the glowstone ceiling lights, and/or call the spawner/loot math
-            block.setType(ceilingLight);
+            plan.setType(x, blockY, z, ceilingLight);
 
             if (ceilingLight != Material.GLOWSTONE) {
                 //everything that is not glowstone is some sort of pillar: carte blanche in choice of pillar blocks. Spawn pillar comes with specified target
-                block = block.getRelative(BlockFace.DOWN);
-                while ((block.getType() == Material.AIR) && block.getY() > 4) {
-                    block.setType(ceilingLight);
+                blockY--;
+                while ((plan.getType(x, blockY, z) == Material.AIR) && blockY > 4) {
+                    plan.setType(x, blockY, z, ceilingLight);
                     if (ceilingLight == Material.MOB_SPAWNER) {
-                        BlockState blockState = block.getState();
-                        CreatureSpawner spawner = ((CreatureSpawner) blockState);
-                        if (random.nextInt(block.getY()) == 1
+                        if (random.nextInt(blockY) == 1
                                 && (mobType == EntityType.SKELETON
                                 || mobType == EntityType.ZOMBIE
                                 || mobType == EntityType.WITCH
                                 || mobType == EntityType.CREEPER
                                 || mobType == EntityType.SPIDER)) {
-                            spawner.setSpawnedType(EntityType.BLAZE); //the lower you go, the more likely there will be blaze spawners mixed with the hostile army
+                            plan.setSpawnedType(x, blockY, z, EntityType.BLAZE); //the lower you go, the more likely there will be blaze spawners mixed with the hostile army
                         } else {
-                            spawner.setSpawnedType(mobType);
+                            plan.setSpawnedType(x, blockY, z, mobType);
                         }
-                        blockState.update();
                     }
-                    block = block.getRelative(BlockFace.DOWN);
+                    blockY--;
                 }
                 //make a pillar of these special materials to indicate what's there 
             } else {
-                block = world.getBlockAt(x, y, z);
-                while ((block.getType() == Material.AIR) && block.getY() > 4) {
-                    block = block.getRelative(BlockFace.DOWN);
+                blockY = y;
+                while ((plan.getType(x, blockY, z) == Material.AIR) && blockY > 4) {
+                    blockY--;
                 }
                 //step down more quickly to the floor without placing anything
             }
-            if (block.getType() != Material.MOB_SPAWNER) {
-                block.setType(floorFeature); //we won't make it mob spawner, since we are not updating the state properly
+            if (plan.getType(x, blockY, z) != Material.MOB_SPAWNER) {
+                plan.setType(x, blockY, z, floorFeature); //we won't make it mob spawner, since we are not updating the state properly
             }
 
             if (ceilingLight == Material.MOB_SPAWNER) {
@@ -523,10 +548,7 @@ public final class Connector {
                         || mobType == EntityType.SPIDER
                         || mobType == EntityType.BLAZE) {
                     //if we have a tower, put an awesome loot chest at the base.
-                    block.setType(Material.CHEST);
-                    BlockState bs = block.getState();
-                    Chest chest = (Chest) bs;
-                    Inventory inv = chest.getBlockInventory();
+                    ChunkEditPlan.ChestContents inv = plan.placeChest(x, blockY, z);
                     for (int chestSlot = 0; chestSlot < 27; ++chestSlot) {
                         int typeID = random.nextInt(453);
                         if (typeID != 137
@@ -578,10 +600,7 @@ public final class Connector {
                     } //this completes the high value chest
                 } else {
                     //if we have food mobs, put a ordinary loot chest at the base.
-                    block.setType(Material.CHEST);
-                    BlockState bs = block.getState();
-                    Chest chest = (Chest) bs;
-                    Inventory inv = chest.getBlockInventory();
+                    ChunkEditPlan.ChestContents inv = plan.placeChest(x, blockY, z);
                     int typeID = random.nextInt(453);
                     if (typeID != 137
                             && typeID != 210
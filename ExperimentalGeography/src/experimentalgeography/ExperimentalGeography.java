@@ -9,6 +9,8 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
 
 import org.bukkit.*;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -24,14 +26,30 @@ import org.bukkit.event.player.PlayerRespawnEvent;
  */
 public class ExperimentalGeography extends JavaPlugin implements Listener {
 
-    private ChunkPopulationSchedule lazyPopulationSchedule;
-
-    private ChunkPopulationSchedule getPopulationSchedule(long seed) {
-        if (lazyPopulationSchedule == null) {
-            lazyPopulationSchedule = new ChunkPopulationSchedule(this, seed);
-        }
+    /**
+     * This is the most memory, in bytes, that the segment cache may use.
+     */
+    private static final long SEGMENT_CACHE_BYTES = 16L * 1024 * 1024;
+    private final SegmentCache segmentCache = new SegmentCache(SEGMENT_CACHE_BYTES);
+    /**
+     * This is how long onDisable() will wait for chunks still being planned.
+     */
+    private static final long PLANNER_SHUTDOWN_SECONDS = 60;
+    private ExecutorService planner;
+    private int plannerThreads;
+    private PopulationScheduler populationScheduler;
+    private ScheduleLoader scheduleLoader;
 
-        return lazyPopulationSchedule;
+    /**
+     * This returns the population schedule for a world; each world has its
+     * own. If it is still loading, this waits for it, but we only populate
+     * chunks that its schedule has given us, so it is always loaded by then.
+     *
+     * @param world The world whose schedule is wanted.
+     * @return The schedule.
+     */
+    private ChunkPopulationSchedule getPopulationSchedule(World world) {
+        return scheduleLoader.get(world);
     }
 
     /**
@@ -41,7 +59,7 @@ public class ExperimentalGeography extends JavaPlugin implements Listener {
      */
     private void populateChunk(ChunkPosition where) {
         World world = where.getWorld();
-        ChunkPopulationSchedule populationSchedule = getPopulationSchedule(world.getSeed());
+        ChunkPopulationSchedule populationSchedule = getPopulationSchedule(world);
 
         // the 8 surrounding chunks; we'll have connection to these, or amoung
         // them.
@@ -76,9 +94,30 @@ public class ExperimentalGeography extends JavaPlugin implements Listener {
         OriginalChunkInfo whereInfo = populationSchedule.getOriginalChunkInfo(where);
         Location start = perturbNode(world, where, whereInfo.nodeY);
 
-        Connector connector = new Connector(where.getChunk(), start, adjacentNodes, surroundingNodes, whereInfo.highestBlockY);
-        connector.connect();
-        connector.decorate();
+        // we've read all the infos we need for this chunk now
+        populationSchedule.markPopulated(where);
+
+        final Connector connector = new Connector(where.getChunk(), start, adjacentNodes, surroundingNodes, whereInfo.highestBlockY, segmentCache);
+
+        // the connector has its snapshot of the chunk now, so the rest of the
+        // work can happen on a planner thread; the plan comes back to the main
+        // thread via the population scheduler.
+        final ExecutorService helpers = planner;
+        final int helperCount = plannerThreads;
+        helpers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // when few chunks are ready, the idle planner threads
+                    // help with this one.
+                    connector.connect(helpers, helperCount);
+                    connector.decorate();
+                    populationScheduler.addFinishedPlan(connector.getPlan());
+                } catch (RuntimeException ex) {
+                    getLogger().log(Level.SEVERE, "Unable to plan chunk", ex);
+                }
+            }
+        });
     }
 
     public static Location perturbNode(World world, ChunkPosition where, int y) {
@@ -183,15 +222,80 @@ public class ExperimentalGeography extends JavaPlugin implements Listener {
     public void onEnable() {
         super.onEnable();
         getServer().getPluginManager().registerEvents(this, this);
+
+        saveDefaultConfig();
+        FileConfiguration config = getConfig();
+
+        plannerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        planner = Executors.newFixedThreadPool(plannerThreads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("ExperimentalGeography planner %d", ++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        PopulationScheduler.ChunkPopulator populator = new PopulationScheduler.ChunkPopulator() {
+            @Override
+            public void populate(ChunkPosition where) {
+                populateChunk(where);
+            }
+        };
+
+        populationScheduler = new PopulationScheduler(this, populator,
+                config.getDouble("population.tickBudgetMillis", 10.0),
+                config.getDouble("population.targetTickMillis", 55.0));
+        populationScheduler.start();
+
+        scheduleLoader = new ScheduleLoader(this, new ScheduleLoader.ReadyListener() {
+            @Override
+            public void scheduleReady(ChunkPopulationSchedule schedule) {
+                populationScheduler.addReadyChunks(schedule.next());
+                schedule.saveLater();
+            }
+        });
+
+        for (World world : getServer().getWorlds()) {
+            scheduleLoader.load(world);
+        }
     }
 
     @Override
     public void onDisable() {
         super.onDisable();
 
-        if (lazyPopulationSchedule != null) {
-            lazyPopulationSchedule.save();
+        if (planner != null) {
+            // chunks already scheduled must still be finished, or they will
+            // never be populated; that includes chunks buffered while their
+            // schedule was loading.
+            scheduleLoader.awaitAll();
+            populationScheduler.stop();
+            populationScheduler.populateAll();
+            planner.shutdown();
+
+            try {
+                if (!planner.awaitTermination(PLANNER_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                    getLogger().warning("Gave up waiting for chunks to be planned.");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            populationScheduler.applyAll();
+            getLogger().info(String.format("Population scheduler: %s", populationScheduler));
+            planner = null;
         }
+
+        if (scheduleLoader != null) {
+            scheduleLoader.close();
+            scheduleLoader = null;
+        }
+
+        getLogger().info(String.format("Segment cache: %s", segmentCache));
+        segmentCache.clear();
     }
 
    /* @EventHandler
@@ -203,18 +307,22 @@ public class ExperimentalGeography extends JavaPlugin implements Listener {
         //Permadeath. This game is a Roguelike, so it has infinite terrain generation and puts you back at the start if you die.        
     } */
 
+    @EventHandler
+    public void onWorldUnload(WorldUnloadEvent e) {
+        segmentCache.removeWorld(e.getWorld());
+    }
+
     @EventHandler
     public void onChunkLoad(ChunkLoadEvent e) {
         if (e.isNewChunk()) {
-            World world = e.getWorld();
-            ChunkPopulationSchedule populationSchedule = getPopulationSchedule(world.getSeed());
-            populationSchedule.schedule(e.getChunk());
+            ChunkPopulationSchedule populationSchedule = scheduleLoader.schedule(e.getChunk());
 
-            for (ChunkPosition next : populationSchedule.next()) {
-                populateChunk(next);
+            // if the schedule is still loading, the chunk waits for it; see
+            // ScheduleLoader.
+            if (populationSchedule != null) {
+                populationScheduler.addReadyChunks(populationSchedule.next());
+                populationSchedule.saveLater();
             }
-
-            populationSchedule.saveLater();
         }
     }
 }
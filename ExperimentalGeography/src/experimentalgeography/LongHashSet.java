@@ -0,0 +1,155 @@
+package experimentalgeography;
+
+import java.util.*;
+
+/**
+ * LongHashSet is a set of long values that stores them directly in an array,
+ * without boxing them. It uses open addressing with linear probing, so each
+ * entry costs just the 8 bytes of the long, plus slack.
+ *
+ * We use this to de-duplicate packed block co-ordinates; see
+ * Space.packBlock().
+ *
+ * @author DanJ
+ */
+public final class LongHashSet {
+
+    // zero marks an empty slot, so the value zero itself is kept separately.
+    private long[] slots;
+    private int size;
+    private boolean hasZero;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * This creates a set that can hold the number of values given without
+     * growing.
+     *
+     * @param expectedSize The number of values expected.
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+
+        this.slots = new long[capacity];
+    }
+
+    /**
+     * This returns the number of values in the set.
+     *
+     * @return The size of the set.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This returns true if the set has no values at all.
+     *
+     * @return True if the set is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * This returns true if the value given is in the set.
+     *
+     * @param value The value to look for.
+     * @return True if the value is present.
+     */
+    public boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+
+        int mask = slots.length - 1;
+        for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+            long slot = slots[i];
+
+            if (slot == value) {
+                return true;
+            } else if (slot == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * This adds a value to the set.
+     *
+     * @param value The value to add.
+     * @return True if the value was added, false if it was already present.
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) {
+                return false;
+            }
+
+            hasZero = true;
+            ++size;
+            return true;
+        }
+
+        int mask = slots.length - 1;
+        for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+            long slot = slots[i];
+
+            if (slot == value) {
+                return false;
+            } else if (slot == 0) {
+                slots[i] = value;
+                ++size;
+
+                if (size * 4 > slots.length * 3) {
+                    grow();
+                }
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * This removes every value from the set, but keeps its storage.
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        int mask = slots.length - 1;
+
+        for (long value : old) {
+            if (value != 0) {
+                int i = mix(value) & mask;
+
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+
+                slots[i] = value;
+            }
+        }
+    }
+
+    /**
+     * This scrambles the bits of the value, so that values that differ only
+     * in their high bits (like packed co-ordinates do) still spread out over
+     * the table.
+     */
+    static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -2,19 +2,26 @@ package experimentalgeography;
 
 import com.google.common.base.*;
 import com.google.common.collect.*;
-import com.google.common.io.Files;
+import com.google.common.io.Closeables;
 import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * MapFileMap is a map that can be saved to a file as text. All keys and values
  * are converted to strings except maps, which are encoded. When you load from a
- * file, you get a MapFileMap that contains only other MapFileMaps and strings.
+ * file, you get a MapFileMap that contains only other MapFileMaps and strings,
+ * except that values written as plain ints are read back as Integers.
  *
  * When you save a map, we convert any lists or object that implement Storable
  * into maps for storage. This class provides methods you can use to convert
- * them back after reading them.
+ * them back after reading them; a Storable class can register a Codec so this
+ * needs no reflection.
+ *
+ * readLazily() reads a file without parsing its top-level submaps; each one is
+ * parsed the first time it is fetched, so a caller that wants only a few
+ * entries need not pay for the rest.
  *
  * @author DanJ
  */
@@ -108,6 +115,10 @@ public final class MapFileMap extends HashMap<String, Object> {
      * to lists by copying the elements. If the value is not a list, but is map,
      * this method will try to convert it by treating the keys as indices.
      *
+     * In a map read from a file, the elements of a list are strings,
+     * Integers or MapFileMaps; a plain element that was written as an int
+     * comes back as an Integer, not a string.
+     *
      * @param key The key of the value.
      * @return The value as a list; may be a copy of the list within.
      * @throws IllegalArgumentException If the key is not found.
@@ -231,10 +242,9 @@ public final class MapFileMap extends HashMap<String, Object> {
 
     /**
      * This method retrieves a value, converting it to the indicated type if
-     * required. If the value is present but not of the desired type, this
-     * method will construct its return value using a single-argument
-     * constructor whose argument is of the type we do have, typically String or
-     * MapFileMap.
+     * required. If the value is a map, we decode it with the type's Codec;
+     * otherwise this method will construct its return value using a
+     * single-argument constructor whose argument is of the type we do have.
      *
      * @param <T> The type of the value to return.
      * @param valueClass The type of the value to return, again.
@@ -252,8 +262,8 @@ public final class MapFileMap extends HashMap<String, Object> {
     }
 
     /**
-     * This method converts a value to a storable type; if necessary it will
-     * invoke the storable type's constructor.
+     * This method converts a value to a storable type; maps are decoded by the
+     * type's codec, and anything else by the storable type's constructor.
      *
      * @param <T> The desired type.
      * @param value The value to convert.
@@ -263,6 +273,10 @@ public final class MapFileMap extends HashMap<String, Object> {
     private static <T extends Storable> T convertValue(Object value, Class<T> valueClass) {
         if (valueClass.isInstance(value)) {
             return valueClass.cast(value);
+        } else if (value instanceof MapFileMap) {
+            return getCodec(valueClass).decode((MapFileMap) value);
+        } else if (value instanceof Map<?, ?>) {
+            return getCodec(valueClass).decode(new MapFileMap((Map<?, ?>) value));
         }
 
         try {
@@ -300,18 +314,21 @@ public final class MapFileMap extends HashMap<String, Object> {
      * strings, except values that can be sub-maps; they can be any kind of map
      * so long as they implement the interface.
      *
+     * This builds the whole text in memory; write() streams it instead.
+     *
      * @param map The map to be converted.
      * @return The map converted to text, as lines.
      */
     public static List<String> getLinesFromMap(Map<?, ?> map) {
-        Set<?> keys = ImmutableSortedSet.copyOf(map.keySet());
-        ImmutableList.Builder<String> b = ImmutableList.builder();
+        StringWriter text = new StringWriter();
 
-        for (Object key : keys) {
-            buildLinesFromMapEntry(b, key, map.get(key));
+        try {
+            new TextEncoder(text).writeMap(map);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
 
-        return b.build();
+        return splitLines(text.toString());
     }
 
     /**
@@ -323,146 +340,621 @@ public final class MapFileMap extends HashMap<String, Object> {
      * @return The collection converted to text, as lines.
      */
     public static List<String> getLinesFromCollection(Collection<?> source) {
-        ImmutableList.Builder<String> b = ImmutableList.builder();
+        StringWriter text = new StringWriter();
+
+        try {
+            new TextEncoder(text).writeCollection(source);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
-        int index = 0;
-        for (Object element : source) {
-            buildLinesFromMapEntry(b, index, element);
-            ++index;
+        return splitLines(text.toString());
+    }
+
+    private static List<String> splitLines(String text) {
+        if (text.isEmpty()) {
+            return ImmutableList.of();
         }
 
-        return b.build();
+        return ImmutableList.copyOf(Splitter.on(NEW_LINE).split(text));
     }
 
     /**
      * This method populates the map with the entries encoded in the lines
      * given. These lines should be in the format getLinesFromMap() produces.
      *
-     * Any existing entries in this map are removed.
+     * Any existing entries in this map are removed. Values come back as
+     * read(File) gives them, so some may be Integers.
      *
      * @param lines The lines to read into the map.
      */
     public void loadFromLines(List<String> lines) {
         clear();
-        loadFromLines(lines.iterator());
+
+        try {
+            loadFrom(new TextDecoder(new StringReader(Joiner.on(NEW_LINE).join(lines))));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * This method is the real implementation of loadFromLines(); it drains an
-     * iterator to get the lines, which allows us to pass the iterator on to a
-     * sub-map when required.
+     * This method is the real implementation of the readers; it reads lines
+     * from the decoder until it reaches the end of the map, which allows us to
+     * pass the decoder on to a sub-map when required.
      *
-     * @param iter The iterator to drain.
+     * @param decoder The decoder to read from.
      */
-    private void loadFromLines(Iterator<String> iter) {
-        while (iter.hasNext()) {
-            String line = iter.next();
-
-            if (line.trim().equals("]")) {
+    private void loadFrom(TextDecoder decoder) throws IOException {
+        while (decoder.readLine()) {
+            if (decoder.lineIs(']', 0)) {
                 break;
             }
 
-            int split = line.indexOf("=");
+            int split = decoder.indexOf('=');
 
             if (split >= 0) {
-                String key = unescape(line.substring(0, split));
-                String value = line.substring(split + 1);
+                String key = decoder.unescape(0, split);
 
-                if (value.trim().equals("[")) {
+                if (decoder.lineIs('[', split + 1)) {
                     MapFileMap submap = new MapFileMap();
-                    submap.loadFromLines(iter);
+                    submap.loadFrom(decoder);
                     put(key, submap);
                 } else {
-                    put(key, unescape(value));
+                    put(key, decoder.decodeValue(split + 1, decoder.lineLength()));
                 }
             }
         }
     }
 
+    ////////////////////////////////
+    // Lazy Loading
+    //
+    // A map from readLazily() keeps the top-level submaps it has
+    // not parsed yet in 'unparsed', not in the map itself, so the
+    // placeholders are never visible. A submap moves into the map
+    // when its key is used; anything that looks at every entry
+    // parses them all first.
+    //
+    // On newer Java, HashMap also has forEach(), replaceAll(),
+    // merge() and the compute methods; those take function types
+    // we can't name here, so they see only the submaps parsed so
+    // far. The rest of the newer methods are overridden below,
+    // without @Override since Java 6 does not have them.
+    private transient Map<String, UnparsedSubmap> unparsed;
+
+    @Override
+    public Object get(Object key) {
+        parse(key);
+        return super.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (unparsed != null && unparsed.containsKey(key)) || super.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return unparsed != null ? super.size() + unparsed.size() : super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        parse(key);
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> m) {
+        if (unparsed != null) {
+            for (Object key : m.keySet()) {
+                parse(key);
+            }
+        }
+
+        super.putAll(m);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        parse(key);
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        unparsed = null;
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        parseAll();
+        return super.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        parseAll();
+        return super.entrySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        parseAll();
+        return super.values();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        parseAll();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object clone() {
+        parseAll();
+        return super.clone();
+    }
+
+    public Object getOrDefault(Object key, Object defaultValue) {
+        return containsKey(key) ? get(key) : defaultValue;
+    }
+
+    public Object putIfAbsent(String key, Object value) {
+        Object existing = get(key);
+        return existing != null ? existing : put(key, value);
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (containsKey(key) && sameValue(get(key), value)) {
+            remove(key);
+            return true;
+        }
+
+        return false;
+    }
+
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        if (containsKey(key) && sameValue(get(key), oldValue)) {
+            put(key, newValue);
+            return true;
+        }
+
+        return false;
+    }
+
+    public Object replace(String key, Object value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    private static boolean sameValue(Object left, Object right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
     /**
-     * This method adds lines to a builder to generate the output for the map
-     * file. This writes a single map entry, but that entry might have a map or
-     * list as its value.
+     * The placeholders are not serializable, so we parse them before the map
+     * is written out.
      */
-    private static void buildLinesFromMapEntry(ImmutableList.Builder<String> destination, Object key, Object value) {
-        if (value instanceof Storable) {
-            value = ((Storable) value).toMap();
+    private Object writeReplace() {
+        parseAll();
+        return this;
+    }
+
+    /**
+     * This parses the submap for 'key', if it has not been parsed yet, and
+     * moves it into the map. The placeholder is dropped only once the parse
+     * has worked.
+     */
+    private void parse(Object key) {
+        if (unparsed != null) {
+            UnparsedSubmap submap = unparsed.get(key);
+
+            if (submap != null) {
+                super.put((String) key, submap.parse());
+                unparsed.remove(key);
+            }
         }
+    }
 
-        if (value instanceof Map<?, ?>) {
-            Map<?, ?> submap = (Map<?, ?>) value;
-            destination.add(String.format("%s=[", escape(key.toString())));
-            destination.addAll(getLinesFromMap(submap));
-            destination.add("]");
-        } else if (value instanceof Collection<?>) {
-            Collection<?> sublist = (Collection<?>) value;
-            destination.add(String.format("%s=[", escape(key.toString())));
-            destination.addAll(getLinesFromCollection(sublist));
-            destination.add("]");
-        } else {
-            destination.add(String.format("%s=%s", escape(key.toString()), escape(value.toString())));
+    private void parseAll() {
+        if (unparsed != null) {
+            for (Map.Entry<String, UnparsedSubmap> e : unparsed.entrySet()) {
+                super.put(e.getKey(), e.getValue().parse());
+            }
+
+            unparsed = null;
+        }
+    }
+
+    /**
+     * This method populates the map from the text given, but parses only the
+     * top level; each submap is skipped, and an UnparsedSubmap recording
+     * where it starts is kept in 'unparsed' instead.
+     *
+     * @param text The text to read; this is kept by the placeholders.
+     * @param length The number of characters of 'text' to read.
+     */
+    private void loadLazily(char[] text, int length) throws IOException {
+        TextDecoder decoder = new TextDecoder(new CharArrayReader(text, 0, length));
+
+        while (decoder.readLine()) {
+            if (decoder.lineIs(']', 0)) {
+                break;
+            }
+
+            int split = decoder.indexOf('=');
+
+            if (split >= 0) {
+                String key = decoder.unescape(0, split);
+
+                if (unparsed != null) {
+                    unparsed.remove(key);
+                }
+
+                if (decoder.lineIs('[', split + 1)) {
+                    if (unparsed == null) {
+                        unparsed = Maps.newHashMap();
+                    }
+
+                    super.remove(key);
+                    unparsed.put(key, new UnparsedSubmap(text, decoder.getOffset(), length));
+                    decoder.skipSubmap();
+                } else {
+                    super.put(key, decoder.decodeValue(split + 1, decoder.lineLength()));
+                }
+            }
         }
     }
 
     /**
-     * This method escapes a string so it can be placed in a file. We escape
-     * using Minecraft's escape character '§'; We escape leading square
-     * brackets, equal signs and line separators. We transform equal signs and
-     * new lines so they won't be found by searches, to simply the parser.
+     * This class stands in for a submap we have not parsed yet; it holds the
+     * text of the whole file, and the offset of the submap's first line.
+     */
+    private static final class UnparsedSubmap {
+
+        private final char[] text;
+        private final int start, length;
+
+        public UnparsedSubmap(char[] text, int start, int length) {
+            this.text = text;
+            this.start = start;
+            this.length = length;
+        }
+
+        public MapFileMap parse() {
+            MapFileMap submap = new MapFileMap();
+
+            try {
+                submap.loadFrom(new TextDecoder(new CharArrayReader(text, start, length - start)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return submap;
+        }
+    }
+
+    ////////////////////////////////
+    // Streaming
+    //
+    /**
+     * This class writes a map as text straight to a Writer; it escapes each
+     * key and value as it writes it, and never builds lines as strings. The
+     * lines are separated by NEW_LINE, with none after the last.
      *
-     * @param text The text to escape.
-     * @return The 'safe' text that contains no dangerous characters.
+     * We escape using Minecraft's escape character '§'; We escape leading
+     * square brackets, equal signs and line separators. We transform equal
+     * signs and new lines so they won't be found by searches, to simply the
+     * parser.
      */
-    private static String escape(String text) {
-        if (text.equals("[")) {
-            return "§[";
+    private static final class TextEncoder {
+
+        private final Writer out;
+        private boolean firstLine = true;
+
+        public TextEncoder(Writer out) {
+            this.out = out;
+        }
+
+        public void writeMap(Map<?, ?> map) throws IOException {
+            for (Object key : ImmutableSortedSet.copyOf(map.keySet())) {
+                writeEntry(key, map.get(key));
+            }
+        }
+
+        public void writeCollection(Collection<?> source) throws IOException {
+            int index = 0;
+
+            for (Object element : source) {
+                writeEntry(index, element);
+                ++index;
+            }
         }
 
-        return text.
-                replace("§", "§§").
-                replace(NEW_LINE, "§n").
-                replace("=", "§-");
+        /**
+         * This writes a single map entry, but that entry might have a map or
+         * list as its value.
+         */
+        private void writeEntry(Object key, Object value) throws IOException {
+            if (value instanceof Storable) {
+                value = encode((Storable) value);
+            }
+
+            startLine();
+            writeEscaped(key.toString());
+            out.write('=');
+
+            if (value instanceof Map<?, ?>) {
+                out.write('[');
+                writeMap((Map<?, ?>) value);
+                startLine();
+                out.write(']');
+            } else if (value instanceof Collection<?>) {
+                out.write('[');
+                writeCollection((Collection<?>) value);
+                startLine();
+                out.write(']');
+            } else {
+                writeEscaped(value.toString());
+            }
+        }
+
+        private void startLine() throws IOException {
+            if (!firstLine) {
+                out.write(NEW_LINE);
+            }
+
+            firstLine = false;
+        }
+
+        private void writeEscaped(String text) throws IOException {
+            // the reader ignores whitespace around a '[' that starts a
+            // submap, so we must escape the '[' of " [" too.
+            boolean escapeBracket = text.trim().equals("[");
+            int length = text.length();
+
+            for (int i = 0; i < length; ++i) {
+                char c = text.charAt(i);
+
+                if (c == '[' && escapeBracket) {
+                    out.write("§[");
+                } else if (text.startsWith(NEW_LINE, i)) {
+                    out.write("§n");
+                    i += NEW_LINE.length() - 1;
+                } else if (c == '§') {
+                    out.write("§§");
+                } else if (c == '=') {
+                    out.write("§-");
+                } else {
+                    out.write(c);
+                }
+            }
+        }
     }
 
     /**
-     * This method reverses the effect of 'escape'. It recognizes the §n and §-
-     * escape sequences for line separators and equal signs, and any other § is
-     * just removed, except for doubled up '§§' escapes.
+     * This class reads text a line at a time from a Reader, into a buffer it
+     * reuses; only the keys and values we keep become strings. Lines may end
+     * with '\n', '\r' or both, as Files.readLines() allows.
+     *
+     * unescape() reverses the escaping TextEncoder does. It recognizes the §n
+     * and §- escape sequences for line separators and equal signs; any other
+     * § is just removed, and the character after it is kept, so '§§' gives
+     * '§' and '§[' gives '['.
      *
-     * @param text The text to unescape.
-     * @return The normal text restored.
+     * decodeValue() is unescape() for values, except that a value that is
+     * exactly how Integer.toString() would write some int is parsed straight
+     * from the buffer and returned as an Integer, without ever being a string.
      */
-    private static String unescape(String text) {
-        StringBuilder b = new StringBuilder(text);
+    private static final class TextDecoder {
+
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int position, limit;
+        // the number of characters read before those in the buffer.
+        private int base;
+        private boolean skipLineFeed;
+        private final StringBuilder line = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+
+        public TextDecoder(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * This reads the next line into the line buffer.
+         *
+         * @return False if there are no more lines.
+         */
+        public boolean readLine() throws IOException {
+            line.setLength(0);
+            boolean any = false;
+
+            for (;;) {
+                if (position == limit) {
+                    base += limit;
+                    limit = in.read(buffer, 0, buffer.length);
+                    position = 0;
+
+                    if (limit <= 0) {
+                        limit = 0;
+                        return any;
+                    }
+                }
+
+                char c = buffer[position++];
+
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+
+                if (c == '\n') {
+                    return true;
+                } else if (c == '\r') {
+                    skipLineFeed = true;
+                    return true;
+                }
+
+                line.append(c);
+                any = true;
+            }
+        }
+
+        public int lineLength() {
+            return line.length();
+        }
+
+        /**
+         * This returns the number of characters consumed so far; after
+         * readLine(), this is where the next line starts.
+         */
+        public int getOffset() {
+            return base + position;
+        }
 
-        for (int i = 0; i < b.length() - 1; ++i) {
-            if (b.charAt(i) == '§') {
-                char next = b.charAt(i + 1);
-                String replacement;
+        /**
+         * This reads past the lines of a submap whose opening line has just
+         * been read, up to and including its closing line, without parsing
+         * any of it.
+         */
+        public void skipSubmap() throws IOException {
+            int depth = 1;
 
-                if (next == 'n') {
-                    replacement = NEW_LINE;
-                } else if (next == '-') {
-                    replacement = "=";
+            while (depth > 0 && readLine()) {
+                if (lineIs(']', 0)) {
+                    --depth;
                 } else {
-                    replacement = "";
+                    int split = indexOf('=');
+
+                    if (split >= 0 && lineIs('[', split + 1)) {
+                        ++depth;
+                    }
                 }
+            }
+        }
 
-                b.replace(i, 2, replacement);
-                i += replacement.length() - 1;
+        public int indexOf(char c) {
+            for (int i = 0; i < line.length(); ++i) {
+                if (line.charAt(i) == c) {
+                    return i;
+                }
             }
+
+            return -1;
         }
 
-        return b.toString();
+        /**
+         * This returns true if the line, from 'start' on, is just the
+         * character given, but for any whitespace around it.
+         */
+        public boolean lineIs(char c, int start) {
+            int end = line.length();
+
+            while (start < end && line.charAt(start) <= ' ') {
+                ++start;
+            }
+
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                --end;
+            }
+
+            return end - start == 1 && line.charAt(start) == c;
+        }
+
+        public String unescape(int start, int end) {
+            text.setLength(0);
+
+            for (int i = start; i < end; ++i) {
+                char c = line.charAt(i);
+
+                if (c == '§' && i + 1 < end) {
+                    char next = line.charAt(++i);
+
+                    if (next == 'n') {
+                        text.append(NEW_LINE);
+                    } else if (next == '-') {
+                        text.append('=');
+                    } else {
+                        text.append(next);
+                    }
+                } else {
+                    text.append(c);
+                }
+            }
+
+            return text.toString();
+        }
+
+        public Object decodeValue(int start, int end) {
+            int value = parseInteger(start, end);
+
+            if (value != 0 || (end - start == 1 && line.charAt(start) == '0')) {
+                return value;
+            }
+
+            return unescape(start, end);
+        }
+
+        /**
+         * This parses the characters given as an int, if they are in the
+         * form Integer.toString() produces: no plus sign, no leading zeros,
+         * no '-0', and in range. It returns 0 for anything else, so the
+         * caller must check for a real "0" itself.
+         */
+        private int parseInteger(int start, int end) {
+            boolean negative = start < end && line.charAt(start) == '-';
+            int i = negative ? start + 1 : start;
+            int digits = end - i;
+
+            if (digits < 1 || digits > 10 || line.charAt(i) == '0') {
+                return 0;
+            }
+
+            // we accumulate negatively, so Integer.MIN_VALUE fits.
+            long result = 0;
+
+            for (; i < end; ++i) {
+                char c = line.charAt(i);
+
+                if (c < '0' || c > '9') {
+                    return 0;
+                }
+
+                result = result * 10 - (c - '0');
+            }
+
+            if (!negative) {
+                result = -result;
+            }
+
+            if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+                return 0;
+            }
+
+            return (int) result;
+        }
     }
+
     ////////////////////////////////
     // File Access
     public static final String NEW_LINE = System.getProperty("line.separator");
 
     /**
      * This method reads a MapFileMap from a file; the resulting map contains
-     * only strings and other MapFileMaps. All IOExceptions are wrapped as
-     * RuntimeExceptions.
+     * only strings, Integers and other MapFileMaps. A value is an Integer if
+     * it was written just as Integer.toString() writes an int; any other
+     * value is a string. All IOExceptions are wrapped as RuntimeExceptions.
      *
      * This method reads the files created by write().
      *
@@ -470,19 +962,93 @@ public final class MapFileMap extends HashMap<String, Object> {
      * @return The new map, read from the file.
      */
     public static MapFileMap read(File file) {
+        Reader in = null;
+
+        try {
+            in = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+            return read(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * This method reads a MapFileMap from a Reader, a line at a time; it does
+     * its own buffering, so 'in' need not be buffered. This does not close
+     * 'in'. Values come back as read(File) gives them.
+     *
+     * @param in The reader to read from.
+     * @return The new map.
+     * @throws IOException If the reader fails.
+     */
+    public static MapFileMap read(Reader in) throws IOException {
+        MapFileMap map = new MapFileMap();
+        map.loadFrom(new TextDecoder(in));
+        return map;
+    }
+
+    /**
+     * This method reads a MapFileMap from a file like read() does, but parses
+     * only the top level at first; each top-level submap is parsed when it is
+     * first fetched. The whole text of the file is kept in memory until every
+     * submap has been parsed. All IOExceptions are wrapped as
+     * RuntimeExceptions.
+     *
+     * Since fetching a value can change the map, the map this returns is not
+     * safe to read from several threads at once.
+     *
+     * @param file The file to read from.
+     * @return The new map, read from the file.
+     */
+    public static MapFileMap readLazily(File file) {
+        Reader in = null;
+
         try {
+            in = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+
+            // UTF-8 never has more characters than bytes.
+            char[] text = new char[(int) Math.min(file.length(), Integer.MAX_VALUE - 8)];
+            int length = 0;
+
+            for (;;) {
+                if (length == text.length) {
+                    // an ASCII file fills the array exactly, so we grow
+                    // it only if there really is more to read.
+                    int c = in.read();
+
+                    if (c < 0) {
+                        break;
+                    }
+
+                    text = Arrays.copyOf(text, Math.max(16, text.length * 2));
+                    text[length++] = (char) c;
+                }
+
+                int count = in.read(text, length, text.length - length);
+
+                if (count < 0) {
+                    break;
+                }
+
+                length += count;
+            }
+
             MapFileMap map = new MapFileMap();
-            map.loadFromLines(Files.readLines(file, Charsets.UTF_8));
+            map.loadLazily(text, length);
             return map;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            Closeables.closeQuietly(in);
         }
     }
 
     /**
      * This method writes the content of this map to a file. This writes the
-     * lines produces by getLinesFromMap() to a UTF8 text file. All IOExceptions
-     * are wrapped as RuntimeExceptions.
+     * lines getLinesFromMap() would produce to a UTF8 text file, but without
+     * ever building them. All IOExceptions are wrapped as RuntimeExceptions.
      *
      * The map need not be a MapFileMap, but all keys are converted to strings,
      * and all values that are not maps are also so converted. Values can
@@ -500,21 +1066,42 @@ public final class MapFileMap extends HashMap<String, Object> {
         File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
 
         try {
-            String text = Joiner.on(NEW_LINE).join(getLinesFromMap(map));
-            Files.write(text, tempFile, Charsets.UTF_8);
+            writeFile(tempFile, map);
 
             boolean renamed = tempFile.renameTo(file);
 
             if (!renamed) {
                 tempFile.delete();
 
-                Files.write(text, file, Charsets.UTF_8);
+                writeFile(file, map);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static void writeFile(File file, Map<?, ?> map) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+
+        try {
+            write(out, map);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * This method writes a map as text to a Writer, in the format write()
+     * uses for files; this does not close or flush 'out'.
+     *
+     * @param out The writer to write to; this should be buffered.
+     * @param map The map to encode.
+     * @throws IOException If the writer fails.
+     */
+    public static void write(Writer out, Map<?, ?> map) throws IOException {
+        new TextEncoder(out).writeMap(map);
+    }
+
     /**
      * This interface may be exposed by classes that can be saved inside a
      * MapFileMap; they must convert themselves to maps, which are then stored.
@@ -538,6 +1125,152 @@ public final class MapFileMap extends HashMap<String, Object> {
         Map<?, ?> toMap();
     }
 
+    ////////////////////////////////
+    // Codecs
+    //
+    private static final ConcurrentMap<Class<?>, Codec<?>> codecs = Maps.newConcurrentMap();
+
+    /**
+     * This interface converts a Storable type to and from the maps we store.
+     * A Storable class can register one with registerCodec(), typically in a
+     * static initializer; then getValue() and getList() call it directly
+     * instead of finding and invoking its constructor by reflection for each
+     * value.
+     *
+     * @param <T> The type the codec converts.
+     */
+    public interface Codec<T extends Storable> {
+
+        /**
+         * This method recreates a value from the map that was stored for it.
+         *
+         * @param map The map read back from the file.
+         * @return The new value.
+         */
+        T decode(MapFileMap map);
+
+        /**
+         * This method returns the map to store for a value; this is usually
+         * just value.toMap().
+         *
+         * @param value The value to encode.
+         * @return The map to store.
+         */
+        Map<?, ?> encode(T value);
+    }
+
+    /**
+     * This method registers the codec for a Storable type, replacing any
+     * codec it had.
+     *
+     * @param <T> The type the codec converts.
+     * @param valueClass The type the codec converts, again.
+     * @param codec The codec to use for the type.
+     */
+    public static <T extends Storable> void registerCodec(Class<T> valueClass, Codec<T> codec) {
+        codecs.put(Preconditions.checkNotNull(valueClass), Preconditions.checkNotNull(codec));
+    }
+
+    /**
+     * This method returns the codec for a type. The type's static
+     * initializer is run first, so it has a chance to register its codec. If
+     * it registers none, we fall back on its constructor that takes a
+     * MapFileMap; we look that up once and keep it as the type's codec.
+     *
+     * @param <T> The type wanted.
+     * @param valueClass The type wanted, again.
+     * @return The codec for the type.
+     * @throws IllegalArgumentException If the type has no codec, and no
+     * constructor we could use instead.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Storable> Codec<T> getCodec(Class<T> valueClass) {
+        Codec<T> codec = (Codec<T>) codecs.get(valueClass);
+
+        if (codec == null) {
+            try {
+                Class.forName(valueClass.getName(), true, valueClass.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+
+            codec = (Codec<T>) codecs.get(valueClass);
+
+            if (codec == null) {
+                codec = new ConstructorCodec<T>(valueClass);
+                Codec<?> existing = codecs.putIfAbsent(valueClass, codec);
+
+                if (existing != null) {
+                    codec = (Codec<T>) existing;
+                }
+            }
+        }
+
+        return codec;
+    }
+
+    /**
+     * This method converts a Storable to the map we store for it, using its
+     * codec if it has registered one.
+     *
+     * @param value The value to convert.
+     * @return The map to store.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<?, ?> encode(Storable value) {
+        Codec<Storable> codec = (Codec<Storable>) codecs.get(value.getClass());
+
+        if (codec != null) {
+            return codec.encode(value);
+        }
+
+        return value.toMap();
+    }
+
+    /**
+     * This codec is used for Storable types that register none; it holds on
+     * to the type's MapFileMap constructor, so it is looked up only once.
+     */
+    private static final class ConstructorCodec<T extends Storable> implements Codec<T> {
+
+        private final Constructor<T> constructor;
+
+        public ConstructorCodec(Class<T> valueClass) {
+            try {
+                this.constructor = valueClass.getConstructor(MapFileMap.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(String.format(
+                        "%s has no codec and no constructor that takes a MapFileMap.", valueClass.getName()), e);
+            }
+        }
+
+        @Override
+        public T decode(MapFileMap map) {
+            try {
+                return constructor.newInstance(map);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+
+                // this is what Throwables.throwIfUnchecked() does, but the
+                // Guava that Bukkit bundles is too old to have it.
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw new RuntimeException(cause);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Map<?, ?> encode(T value) {
+            return value.toMap();
+        }
+    }
+
     ////////////////////////////////
     // Implementation
     /**
@@ -20,6 +20,12 @@ public final class OriginalChunkInfo implements MapFileMap.Storable {
     public final int highestBlockY;
     public final int nodeY;
 
+    public OriginalChunkInfo(ChunkPosition position, int highestBlockY, int nodeY) {
+        this.position = position;
+        this.highestBlockY = highestBlockY;
+        this.nodeY = nodeY;
+    }
+
     public OriginalChunkInfo(Chunk chunk) {
         this.position = ChunkPosition.of(chunk);
         Location center = ExperimentalGeography.perturbNode(chunk.getWorld(), position, 0);
@@ -171,6 +177,25 @@ public final class OriginalChunkInfo implements MapFileMap.Storable {
 
     ////////////////////////////////////////////////////////////////
     // MapFileMap.Storage
+    /**
+     * This codec lets MapFileMap read chunk infos back without reflection.
+     */
+    public static final MapFileMap.Codec<OriginalChunkInfo> CODEC = new MapFileMap.Codec<OriginalChunkInfo>() {
+        @Override
+        public OriginalChunkInfo decode(MapFileMap map) {
+            return new OriginalChunkInfo(map);
+        }
+
+        @Override
+        public Map<?, ?> encode(OriginalChunkInfo value) {
+            return value.toMap();
+        }
+    };
+
+    static {
+        MapFileMap.registerCodec(OriginalChunkInfo.class, CODEC);
+    }
+
     public OriginalChunkInfo(MapFileMap map) {
         this.position = map.getValue("position", ChunkPosition.class);
         this.highestBlockY = map.getInteger("highestBlockY");
@@ -0,0 +1,282 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.bukkit.plugin.*;
+import org.bukkit.scheduler.*;
+
+/**
+ * PopulationScheduler spreads the main-thread work of populating chunks over
+ * many ticks. Chunks that are ready to populate go into a queue, and plans
+ * that the planner threads have finished go into another; once a tick we take
+ * work from these queues until we have used up a budget of milliseconds.
+ *
+ * The budget backs off by itself: we keep a smoothed average of the time
+ * between our runs, and while that says the server's ticks are running long,
+ * we halve the budget, waiting a few ticks between halvings for the average
+ * to catch up; then we let it creep back up to the configured budget while
+ * ticks are on time. One long tick by itself moves the average only a little,
+ * so it does not make us back off. We always do at least one piece of work
+ * per tick, so the queues do drain eventually.
+ *
+ * @author DanJ
+ */
+public final class PopulationScheduler {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // each tick's length counts for 1/2^SMOOTHING_SHIFT of the average.
+    private static final int SMOOTHING_SHIFT = 3;
+    private final Plugin plugin;
+    private final ChunkPopulator populator;
+    private final long maxBudgetNanos;
+    private final long minBudgetNanos;
+    private final long targetTickNanos;
+    private final Queue<ChunkPosition> readyChunks = Lists.newLinkedList();
+    private final Queue<ChunkEditPlan> finishedPlans = new ConcurrentLinkedQueue<ChunkEditPlan>();
+    private BukkitRunnable task;
+    private long budgetNanos;
+    private long lastRunNanos;
+    private long lastTickNanos;
+    private long smoothedTickNanos;
+    private int ticksSinceBackOff;
+    private long lastSpentNanos;
+    private long totalSpentNanos;
+    private long populatedCount, appliedCount, backOffCount;
+
+    /**
+     * This creates a scheduler; it does nothing until you start() it.
+     *
+     * @param plugin The plugin that owns the repeating task.
+     * @param populator The object that populates each chunk.
+     * @param budgetMillis The most time to spend per tick, in milliseconds.
+     * @param targetTickMillis The tick length we want the server to keep to;
+     * when ticks average longer than this, we back off.
+     */
+    public PopulationScheduler(Plugin plugin, ChunkPopulator populator, double budgetMillis, double targetTickMillis) {
+        Preconditions.checkArgument(budgetMillis > 0, "budgetMillis must be positive.");
+        Preconditions.checkArgument(targetTickMillis > 0, "targetTickMillis must be positive.");
+
+        this.plugin = Preconditions.checkNotNull(plugin);
+        this.populator = Preconditions.checkNotNull(populator);
+        this.maxBudgetNanos = (long) (budgetMillis * NANOS_PER_MILLI);
+        this.minBudgetNanos = Math.max(1, maxBudgetNanos / 16);
+        this.targetTickNanos = (long) (targetTickMillis * NANOS_PER_MILLI);
+        this.budgetNanos = maxBudgetNanos;
+    }
+
+    /**
+     * This interface is what the scheduler calls to start populating a chunk;
+     * it is called on the main thread.
+     */
+    public interface ChunkPopulator {
+
+        void populate(ChunkPosition where);
+    }
+
+    ////////////////////////////////
+    // Queues
+    //
+    /**
+     * This adds chunks that are ready to be populated; this must be called on
+     * the main thread.
+     *
+     * @param chunks The chunks to populate, in order.
+     */
+    public void addReadyChunks(Iterable<ChunkPosition> chunks) {
+        Iterables.addAll(readyChunks, chunks);
+    }
+
+    /**
+     * This adds a plan that is ready to be applied; this may be called on any
+     * thread.
+     *
+     * @param plan The plan to apply.
+     */
+    public void addFinishedPlan(ChunkEditPlan plan) {
+        finishedPlans.add(Preconditions.checkNotNull(plan));
+    }
+
+    /**
+     * This returns the number of chunks waiting to be populated.
+     *
+     * @return The length of the ready queue.
+     */
+    public int getReadyDepth() {
+        return readyChunks.size();
+    }
+
+    /**
+     * This returns the number of plans waiting to be applied.
+     *
+     * @return The length of the plan queue.
+     */
+    public int getPlanDepth() {
+        return finishedPlans.size();
+    }
+
+    ////////////////////////////////
+    // Timing
+    //
+    /**
+     * This returns the budget we are working to now; this is less than the
+     * configured budget when we have backed off.
+     *
+     * @return The per-tick budget in milliseconds.
+     */
+    public double getBudgetMillis() {
+        return (double) budgetNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * This returns the time we spent working in the most recent tick.
+     *
+     * @return The time spent, in milliseconds.
+     */
+    public double getLastSpentMillis() {
+        return (double) lastSpentNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * This returns the length of the most recent tick, as measured by the
+     * time between our runs.
+     *
+     * @return The tick length in milliseconds, or 0 before the second run.
+     */
+    public double getLastTickMillis() {
+        return (double) lastTickNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * This returns the smoothed tick length that we compare to the target
+     * when deciding whether to back off.
+     *
+     * @return The average tick length in milliseconds, or 0 before the
+     * second run.
+     */
+    public double getSmoothedTickMillis() {
+        return (double) smoothedTickNanos / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ready, %d plans, budget %.1fms, last tick %.1fms (spent %.1fms), "
+                + "average tick %.1fms, %d populated, %d applied, %.0fms total, %d back-offs",
+                getReadyDepth(), getPlanDepth(), getBudgetMillis(), getLastTickMillis(), getLastSpentMillis(),
+                getSmoothedTickMillis(),
+                populatedCount, appliedCount, (double) totalSpentNanos / NANOS_PER_MILLI, backOffCount);
+    }
+
+    ////////////////////////////////
+    // Running
+    //
+    /**
+     * This starts the repeating task that does the work.
+     */
+    public void start() {
+        Preconditions.checkState(task == null, "The scheduler is already started.");
+
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                runTick();
+            }
+        };
+        task.runTaskTimer(plugin, 1, 1);
+    }
+
+    /**
+     * This stops the repeating task; any work still queued stays queued.
+     */
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * This populates every ready chunk at once, ignoring the budget; we do
+     * this when shutting down.
+     */
+    public void populateAll() {
+        while (!readyChunks.isEmpty()) {
+            populateNext();
+        }
+    }
+
+    /**
+     * This applies every finished plan at once, ignoring the budget; we do
+     * this when shutting down.
+     */
+    public void applyAll() {
+        while (!finishedPlans.isEmpty()) {
+            applyNext();
+        }
+    }
+
+    private void runTick() {
+        long started = System.nanoTime();
+
+        if (lastRunNanos != 0) {
+            lastTickNanos = started - lastRunNanos;
+            adjustBudget();
+        }
+
+        lastRunNanos = started;
+
+        long deadline = started + budgetNanos;
+        boolean first = true;
+
+        // finished plans go first; they are holding memory, and they
+        // finish off chunks we've already started.
+        while (!finishedPlans.isEmpty() && (first || System.nanoTime() < deadline)) {
+            applyNext();
+            first = false;
+        }
+
+        while (!readyChunks.isEmpty() && (first || System.nanoTime() < deadline)) {
+            populateNext();
+            first = false;
+        }
+
+        lastSpentNanos = System.nanoTime() - started;
+        totalSpentNanos += lastSpentNanos;
+    }
+
+    private void adjustBudget() {
+        if (smoothedTickNanos == 0) {
+            smoothedTickNanos = lastTickNanos;
+        } else {
+            smoothedTickNanos += (lastTickNanos - smoothedTickNanos) >> SMOOTHING_SHIFT;
+        }
+
+        ++ticksSinceBackOff;
+
+        if (smoothedTickNanos > targetTickNanos) {
+            if (ticksSinceBackOff >= (1 << SMOOTHING_SHIFT)) {
+                long reduced = Math.max(minBudgetNanos, budgetNanos / 2);
+
+                if (reduced < budgetNanos) {
+                    ++backOffCount;
+                }
+
+                budgetNanos = reduced;
+                ticksSinceBackOff = 0;
+            }
+        } else {
+            budgetNanos = Math.min(maxBudgetNanos, budgetNanos + maxBudgetNanos / 10);
+        }
+    }
+
+    private void populateNext() {
+        populator.populate(readyChunks.remove());
+        ++populatedCount;
+    }
+
+    private void applyNext() {
+        finishedPlans.remove().apply();
+        ++appliedCount;
+    }
+}
@@ -0,0 +1,520 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.io.Closeables;
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * ScheduleJournal is an append-only log of the changes made to a
+ * ChunkPopulationSchedule since its shards were last written. Each change is a
+ * small record with its own checksum, so recording a new chunk costs a few
+ * bytes written at the end of one file, rather than a rewrite of the shards.
+ *
+ * The file starts with a header: a magic number, a format version, the world
+ * seed and a generation number. Each compaction writes the shards for the
+ * next generation and then starts a fresh, empty journal with that
+ * generation; see ChunkPopulationSchedule.save() for how the two are kept in
+ * step. Since the shards can be written on another thread, mark() lets us
+ * keep the records appended meanwhile, so the new journal can start with them.
+ *
+ * Each record is a type byte, the chunk's x and z, the chunk's highestBlockY
+ * and nodeY as shorts if it is a SCHEDULED record, and then a CRC32 of all of
+ * that. When we replay the journal, we stop at the first record that is cut
+ * short or has a bad checksum, and cut the file off there; such a record can
+ * only be the last one, half written when the server went down.
+ *
+ * @author DanJ
+ */
+public final class ScheduleJournal {
+
+    /**
+     * This is "EGJL" in ASCII; it marks a file as one of ours.
+     */
+    public static final int MAGIC = 0x45474A4C;
+    /**
+     * This is the version of the format that we write; we refuse to read any
+     * other.
+     */
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final byte SCHEDULED = 1;
+    private static final byte TAKEN = 2;
+    private static final byte POPULATED = 3;
+    private final File file;
+    private final long seed;
+    private long generation;
+    private long byteSize;
+    private int recordCount;
+    private DataOutputStream out;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(32);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    // the records appended since mark(), or null if there's no mark.
+    private ByteArrayOutputStream tail;
+    private int tailRecordCount;
+
+    /**
+     * This creates a journal for the file given, but does not read it; call
+     * replay() to do that. The file is not created until the first record is
+     * appended.
+     *
+     * @param file The journal file.
+     * @param seed The seed of the world the journal is for.
+     */
+    public ScheduleJournal(File file, long seed) {
+        this.file = Preconditions.checkNotNull(file);
+        this.seed = seed;
+    }
+
+    /**
+     * This interface receives the records of the journal as it is replayed;
+     * there is one method for each kind of record.
+     */
+    public interface Replayer {
+
+        /**
+         * This is called once, before any records, with the generation of the
+         * journal; it is called even if there is no journal to replay.
+         *
+         * @param generation The generation of the shards the records apply
+         * to.
+         */
+        void begin(long generation);
+
+        /**
+         * This is called for a chunk that was scheduled.
+         *
+         * @param x The chunk x co-ordinate.
+         * @param z The chunk z co-ordinate.
+         * @param highestBlockY The highest block in the chunk.
+         * @param nodeY The height of the chunk's node.
+         */
+        void scheduled(int x, int z, int highestBlockY, int nodeY);
+
+        /**
+         * This is called for a chunk that was returned by next().
+         *
+         * @param x The chunk x co-ordinate.
+         * @param z The chunk z co-ordinate.
+         */
+        void taken(int x, int z);
+
+        /**
+         * This is called for a chunk that was marked as populated.
+         *
+         * @param x The chunk x co-ordinate.
+         * @param z The chunk z co-ordinate.
+         */
+        void populated(int x, int z);
+    }
+
+    /**
+     * This returns the generation of the journal; this is the generation of
+     * the shards the records apply to. A journal that does not exist yet is of
+     * generation 0.
+     *
+     * @return The generation number.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * This returns the size of the journal file, including any records not yet
+     * flushed.
+     *
+     * @return The size in bytes.
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * This returns the number of records in the journal.
+     *
+     * @return The record count.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    ////////////////////////////////
+    // Replaying
+    //
+    /**
+     * This reads the journal, passing each record to 'replayer', and leaves
+     * the journal ready for more records. If the journal ends with a damaged
+     * record, the file is cut off before it. A journal for another seed is
+     * treated as if it were empty. All IOExceptions are wrapped as
+     * RuntimeExceptions.
+     *
+     * @param replayer The object to receive the records.
+     * @return False if we had to cut a damaged record off the end of the
+     * journal, true if it was intact.
+     * @throws IllegalArgumentException If the file is not a journal, or is of
+     * a version we can't read.
+     */
+    public boolean replay(Replayer replayer) {
+        Preconditions.checkState(out == null, "The journal has already been written to.");
+
+        File tempFile = getTempFile();
+
+        if (!file.exists() && tempFile.exists()) {
+            // we died while replacing the journal, after deleting the old one.
+            tempFile.renameTo(file);
+        }
+
+        if (!file.exists()) {
+            replayer.begin(generation);
+            return true;
+        }
+
+        long validSize = 0;
+        boolean intact = true;
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (file.length() < HEADER_SIZE) {
+                // cut off while writing the header; this can hold no records.
+                intact = false;
+                replayer.begin(generation);
+            } else {
+                if (in.readInt() != MAGIC) {
+                    throw new IllegalArgumentException(String.format("The file %s is not a schedule journal.", file));
+                }
+
+                int version = in.readInt();
+
+                if (version != VERSION) {
+                    throw new IllegalArgumentException(String.format(
+                            "The schedule journal %s has version %d; we can read only version %d.",
+                            file, version, VERSION));
+                }
+
+                long loadedSeed = in.readLong();
+                long loadedGeneration = in.readLong();
+
+                if (loadedSeed == seed) {
+                    generation = loadedGeneration;
+                    validSize = HEADER_SIZE;
+                    replayer.begin(generation);
+
+                    int size;
+                    while ((size = replayRecord(in, replayer)) > 0) {
+                        validSize += size;
+                        ++recordCount;
+                    }
+
+                    intact = size == 0;
+                } else {
+                    replayer.begin(generation);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+
+        if (validSize == 0) {
+            reset(generation);
+        } else {
+            byteSize = validSize;
+
+            if (!intact) {
+                truncate(validSize);
+            }
+        }
+
+        return intact;
+    }
+
+    /**
+     * This reads one record and passes it on.
+     *
+     * @return The size of the record, 0 if we are at the end of the file, or
+     * -1 if the record is damaged.
+     */
+    private int replayRecord(DataInputStream in, Replayer replayer) throws IOException {
+        int type = in.read();
+
+        if (type < 0) {
+            return 0;
+        }
+
+        try {
+            crc.reset();
+            crc.update(type);
+
+            int x = in.readInt();
+            int z = in.readInt();
+            updateChecksum(x);
+            updateChecksum(z);
+
+            int highestBlockY = 0, nodeY = 0;
+
+            if (type == SCHEDULED) {
+                highestBlockY = in.readShort();
+                nodeY = in.readShort();
+                crc.update(highestBlockY >> 8);
+                crc.update(highestBlockY);
+                crc.update(nodeY >> 8);
+                crc.update(nodeY);
+            }
+
+            if (in.readInt() != (int) crc.getValue()) {
+                return -1;
+            }
+
+            switch (type) {
+                case SCHEDULED:
+                    replayer.scheduled(x, z, highestBlockY, nodeY);
+                    return 17;
+                case TAKEN:
+                    replayer.taken(x, z);
+                    return 13;
+                case POPULATED:
+                    replayer.populated(x, z);
+                    return 13;
+                default:
+                    // a good checksum on a type we don't know; not a torn write.
+                    throw new IllegalArgumentException(String.format(
+                            "The schedule journal %s contains a record of unknown type %d.", file, type));
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    ////////////////////////////////
+    // Appending
+    //
+    /**
+     * This appends a record saying a chunk was scheduled.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     * @param highestBlockY The highest block in the chunk.
+     * @param nodeY The height of the chunk's node.
+     */
+    public void appendScheduled(int x, int z, int highestBlockY, int nodeY) {
+        try {
+            record.writeByte(SCHEDULED);
+            record.writeInt(x);
+            record.writeInt(z);
+            record.writeShort(highestBlockY);
+            record.writeShort(nodeY);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This appends a record saying a chunk was returned by next().
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     */
+    public void appendTaken(int x, int z) {
+        appendPosition(TAKEN, x, z);
+    }
+
+    /**
+     * This appends a record saying a chunk was populated.
+     *
+     * @param x The chunk x co-ordinate.
+     * @param z The chunk z co-ordinate.
+     */
+    public void appendPopulated(int x, int z) {
+        appendPosition(POPULATED, x, z);
+    }
+
+    private void appendPosition(byte type, int x, int z) {
+        try {
+            record.writeByte(type);
+            record.writeInt(x);
+            record.writeInt(z);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void appendRecord() throws IOException {
+        crc.reset();
+        crc.update(recordBytes.toByteArray());
+        record.writeInt((int) crc.getValue());
+
+        openForAppend();
+        recordBytes.writeTo(out);
+        byteSize += recordBytes.size();
+        ++recordCount;
+
+        if (tail != null) {
+            recordBytes.writeTo(tail);
+            ++tailRecordCount;
+        }
+
+        recordBytes.reset();
+    }
+
+    ////////////////////////////////
+    // Compaction
+    //
+    /**
+     * This marks the current end of the journal; the records appended after
+     * this are kept in memory as well, until commitMark() or discardMark().
+     * We mark the journal when we snapshot the schedule to compact it.
+     */
+    public void mark() {
+        Preconditions.checkState(tail == null, "The journal is already marked.");
+        tail = new ByteArrayOutputStream();
+        tailRecordCount = 0;
+    }
+
+    /**
+     * This replaces the journal with one of the generation given, which holds
+     * only the records appended since mark(); the records before the mark are
+     * in the new shards.
+     *
+     * @param newGeneration The generation of the new journal.
+     */
+    public void commitMark(long newGeneration) {
+        Preconditions.checkState(tail != null, "The journal is not marked.");
+
+        ByteArrayOutputStream records = tail;
+        int count = tailRecordCount;
+        tail = null;
+
+        replace(newGeneration, records, count);
+    }
+
+    /**
+     * This forgets the mark, keeping the journal as it is; we do this if
+     * the shards could not be written.
+     */
+    public void discardMark() {
+        tail = null;
+    }
+
+    /**
+     * This writes any records still buffered out to the file.
+     */
+    public void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * This flushes and closes the journal file; if more records are appended,
+     * it is opened again.
+     */
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * This replaces the journal with an empty one of the generation given.
+     *
+     * @param newGeneration The generation of the new journal.
+     */
+    public void reset(long newGeneration) {
+        replace(newGeneration, new ByteArrayOutputStream(), 0);
+    }
+
+    /**
+     * This replaces the journal with one of the generation given that holds
+     * the records given; the replacement is written to a temp file and renamed
+     * over the original, so at any moment the file holds either the old
+     * journal or the new one.
+     */
+    private void replace(long newGeneration, ByteArrayOutputStream records, int count) {
+        close();
+
+        File tempFile = getTempFile();
+        file.getParentFile().mkdirs();
+
+        try {
+            DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            try {
+                fileOut.writeInt(MAGIC);
+                fileOut.writeInt(VERSION);
+                fileOut.writeLong(seed);
+                fileOut.writeLong(newGeneration);
+                records.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException(String.format("Unable to replace %s.", file));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        generation = newGeneration;
+        byteSize = HEADER_SIZE + records.size();
+        recordCount = count;
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private File getTempFile() {
+        return new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    private void openForAppend() throws IOException {
+        if (out == null) {
+            if (byteSize == 0) {
+                reset(generation);
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+    }
+
+    private void truncate(long size) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                raf.setLength(size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void updateChecksum(int value) {
+        crc.update(value >> 24);
+        crc.update(value >> 16);
+        crc.update(value >> 8);
+        crc.update(value);
+    }
+}
@@ -0,0 +1,274 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import org.bukkit.*;
+import org.bukkit.plugin.*;
+import org.bukkit.scheduler.*;
+
+/**
+ * ScheduleLoader loads each world's ChunkPopulationSchedule on a background
+ * thread, so that replaying its journal, or reading an old schedule file, does
+ * not hold up the server. We start loading the schedules of the worlds that
+ * exist when the plugin is enabled right away; other worlds start loading when
+ * their first new chunk does.
+ *
+ * New chunks that load in a world before its schedule is ready have their
+ * info captured then and there, and are scheduled in order once it is ready.
+ * A task checks once a tick for schedules that have finished loading; it runs
+ * only while something is loading.
+ *
+ * @author DanJ
+ */
+public final class ScheduleLoader {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private final Plugin plugin;
+    private final ReadyListener listener;
+    private final long startedNanos = System.nanoTime();
+    private final Map<String, ChunkPopulationSchedule> schedules = Maps.newHashMap();
+    private final Map<String, Loading> loading = Maps.newLinkedHashMap();
+    private final ExecutorService loader;
+    private BukkitRunnable poller;
+
+    /**
+     * This creates a loader; the time it is created is taken to be startup,
+     * for reporting how long the schedules took to load.
+     *
+     * @param plugin The plugin that owns the schedules.
+     * @param listener The object to tell when each schedule is ready.
+     */
+    public ScheduleLoader(Plugin plugin, ReadyListener listener) {
+        this.plugin = Preconditions.checkNotNull(plugin);
+        this.listener = Preconditions.checkNotNull(listener);
+        this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ExperimentalGeography schedule loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * This interface is told when a schedule has finished loading, and any
+     * chunks buffered for it have been scheduled; it is called on the main
+     * thread.
+     */
+    public interface ReadyListener {
+
+        void scheduleReady(ChunkPopulationSchedule schedule);
+    }
+
+    /**
+     * This holds a schedule that is still loading, and the chunks that have
+     * loaded in its world meanwhile.
+     */
+    private static final class Loading {
+
+        public final Future<ChunkPopulationSchedule> future;
+        public final long startedNanos;
+        public final List<OriginalChunkInfo> bufferedChunks = Lists.newArrayList();
+
+        public Loading(Future<ChunkPopulationSchedule> future, long startedNanos) {
+            this.future = future;
+            this.startedNanos = startedNanos;
+        }
+    }
+
+    ////////////////////////////////
+    // Loading
+    //
+    /**
+     * This starts loading the schedule for a world, unless it is already
+     * loaded or loading.
+     *
+     * @param world The world whose schedule is wanted.
+     */
+    public void load(final World world) {
+        String name = world.getName();
+
+        if (!schedules.containsKey(name) && !loading.containsKey(name)) {
+            Future<ChunkPopulationSchedule> future = loader.submit(new Callable<ChunkPopulationSchedule>() {
+                @Override
+                public ChunkPopulationSchedule call() {
+                    return new ChunkPopulationSchedule(plugin, world);
+                }
+            });
+
+            loading.put(name, new Loading(future, System.nanoTime()));
+            startPoller();
+        }
+    }
+
+    /**
+     * This returns the schedule for a world if it has finished loading.
+     *
+     * @param world The world whose schedule is wanted.
+     * @return The schedule, or null if it is not ready yet.
+     */
+    public ChunkPopulationSchedule getIfReady(World world) {
+        return schedules.get(world.getName());
+    }
+
+    /**
+     * This returns the schedule for a world, waiting for it to load if need
+     * be.
+     *
+     * @param world The world whose schedule is wanted.
+     * @return The schedule.
+     */
+    public ChunkPopulationSchedule get(World world) {
+        ChunkPopulationSchedule schedule = schedules.get(world.getName());
+
+        if (schedule == null) {
+            load(world);
+            finish(world.getName(), true);
+            schedule = schedules.get(world.getName());
+
+            if (schedule == null) {
+                throw new IllegalStateException(String.format(
+                        "The population schedule for %s could not be loaded.", world.getName()));
+            }
+        }
+
+        return schedule;
+    }
+
+    /**
+     * This schedules a newly loaded chunk. If its world's schedule is not
+     * ready, we capture its info now and schedule it once the schedule is
+     * ready.
+     *
+     * @param chunk The chunk that has loaded.
+     * @return The schedule, if the chunk was scheduled right away; null if
+     * it was buffered.
+     */
+    public ChunkPopulationSchedule schedule(Chunk chunk) {
+        ChunkPopulationSchedule schedule = getIfReady(chunk.getWorld());
+
+        if (schedule != null) {
+            schedule.schedule(chunk);
+            return schedule;
+        }
+
+        load(chunk.getWorld());
+        loading.get(chunk.getWorld().getName()).bufferedChunks.add(new OriginalChunkInfo(chunk));
+        return null;
+    }
+
+    /**
+     * This waits for every schedule still loading, and finishes them off as
+     * they would be if they had loaded in time.
+     */
+    public void awaitAll() {
+        for (String name : Lists.newArrayList(loading.keySet())) {
+            finish(name, true);
+        }
+    }
+
+    /**
+     * This returns every schedule that has finished loading.
+     *
+     * @return The loaded schedules.
+     */
+    public Collection<ChunkPopulationSchedule> getSchedules() {
+        return Collections.unmodifiableCollection(schedules.values());
+    }
+
+    /**
+     * This waits for any schedules still loading, closes every schedule, and
+     * stops the loader thread.
+     */
+    public void close() {
+        awaitAll();
+        stopPoller();
+
+        for (ChunkPopulationSchedule schedule : schedules.values()) {
+            schedule.close();
+        }
+
+        schedules.clear();
+        loader.shutdown();
+    }
+
+    ////////////////////////////////
+    // Polling
+    //
+    private void startPoller() {
+        if (poller == null) {
+            poller = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    for (String name : Lists.newArrayList(loading.keySet())) {
+                        finish(name, false);
+                    }
+
+                    if (loading.isEmpty()) {
+                        stopPoller();
+                    }
+                }
+            };
+            poller.runTaskTimer(plugin, 1, 1);
+        }
+    }
+
+    private void stopPoller() {
+        if (poller != null) {
+            poller.cancel();
+            poller = null;
+        }
+    }
+
+    /**
+     * This takes a schedule that has finished loading, schedules the chunks
+     * buffered for it, and tells the listener it is ready. If loading failed,
+     * we log it and drop the buffered chunks; the next chunk to load in that
+     * world will try again.
+     *
+     * @param name The name of the world.
+     * @param wait If true, we wait for the schedule to load; if false, we do
+     * nothing if it has not.
+     */
+    private void finish(String name, boolean wait) {
+        Loading entry = loading.get(name);
+
+        if (entry == null || (!wait && !entry.future.isDone())) {
+            return;
+        }
+
+        loading.remove(name);
+
+        ChunkPopulationSchedule schedule;
+
+        try {
+            schedule = entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            plugin.getLogger().log(Level.SEVERE,
+                    String.format("Interrupted while loading the population schedule for %s.", name), e);
+            return;
+        } catch (ExecutionException e) {
+            plugin.getLogger().log(Level.SEVERE,
+                    String.format("Unable to load the population schedule for %s.", name), e.getCause());
+            return;
+        }
+
+        for (OriginalChunkInfo info : entry.bufferedChunks) {
+            schedule.schedule(info);
+        }
+
+        schedules.put(name, schedule);
+        listener.scheduleReady(schedule);
+
+        long now = System.nanoTime();
+        plugin.getLogger().info(String.format(
+                "Population schedule for %s ready %dms after startup (loaded in %dms; %d chunks buffered).",
+                name, (now - startedNanos) / NANOS_PER_MILLI, (now - entry.startedNanos) / NANOS_PER_MILLI,
+                entry.bufferedChunks.size()));
+    }
+}
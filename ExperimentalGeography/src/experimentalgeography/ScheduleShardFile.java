@@ -0,0 +1,281 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.io.Closeables;
+import java.io.*;
+
+/**
+ * ScheduleShardFile reads and writes the binary form of one region's shard of
+ * a ChunkPopulationSchedule. This is much smaller and quicker than the text
+ * that MapFileMap writes.
+ *
+ * The file starts with a fixed header: a magic number, a format version, the
+ * world seed and the region's co-ordinates. The header can be checked before
+ * any of the rest is read, so a shard from some other seed costs almost
+ * nothing. After the header comes a varint count of records, and then one
+ * record per chunk, in the order of the chunk's index within the region. Each
+ * record is a varint giving the distance from the previous record's index,
+ * then a flags byte and the two counts as bytes. If the chunk has an original
+ * info, its highestBlockY and nodeY follow as shorts.
+ *
+ * @author DanJ
+ */
+public final class ScheduleShardFile {
+
+    /**
+     * This is "EGSC" in ASCII; it marks a file as one of ours.
+     */
+    public static final int MAGIC = 0x45475343;
+    /**
+     * This is the version of the format that we write; we refuse to read any
+     * other.
+     */
+    public static final int VERSION = 1;
+    private static final int FLAG_INFO = 1;
+    private static final int FLAG_PENDING = 2;
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+
+    private ScheduleShardFile() {
+    }
+
+    /**
+     * This interface receives the records of a shard as it is read.
+     */
+    public interface RecordSink {
+
+        /**
+         * This is called for each chunk in the shard.
+         *
+         * @param x The chunk x co-ordinate.
+         * @param z The chunk z co-ordinate.
+         * @param info The chunk's info, as ChunkInfoPacking.pack() packs it, or
+         * ChunkInfoPacking.MISSING if it has none.
+         * @param pending True if the chunk is waiting to be populated.
+         * @param loadedNeighborCount The number of its neighbors that have
+         * loaded.
+         * @param populatedCount The number of it and its neighbors that have
+         * been populated.
+         */
+        void record(int x, int z, int info, boolean pending, int loadedNeighborCount, int populatedCount);
+    }
+
+    ////////////////////////////////
+    // Reading
+    //
+    /**
+     * This reads a shard, passing each record to 'sink'. If the file is not
+     * for the seed given, this reads only the header and returns false. All
+     * IOExceptions are wrapped as RuntimeExceptions.
+     *
+     * @param file The file to read.
+     * @param seed The seed of the world we want.
+     * @param sink The object to receive the records.
+     * @return True if the shard was read, false if it was for another seed.
+     * @throws IllegalArgumentException If the file is not a shard, or is of a
+     * version we can't read.
+     */
+    public static boolean read(File file, long seed, RecordSink sink) {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException(String.format("The file %s is not a schedule shard.", file));
+            }
+
+            int version = in.readInt();
+
+            if (version != VERSION) {
+                throw new IllegalArgumentException(String.format(
+                        "The schedule shard %s has version %d; we can read only version %d.",
+                        file, version, VERSION));
+            }
+
+            if (in.readLong() != seed) {
+                return false;
+            }
+
+            int minX = in.readInt() << REGION_SHIFT;
+            int minZ = in.readInt() << REGION_SHIFT;
+            int count = readVarInt(in);
+            int index = -1;
+
+            for (int i = 0; i < count; ++i) {
+                index += readVarInt(in) + 1;
+                int flags = in.readUnsignedByte();
+                int loadedNeighborCount = in.readUnsignedByte();
+                int populatedCount = in.readUnsignedByte();
+                int info = ChunkInfoPacking.MISSING;
+
+                if ((flags & FLAG_INFO) != 0) {
+                    int highestBlockY = in.readShort();
+                    int nodeY = in.readShort();
+                    info = ChunkInfoPacking.pack(highestBlockY, nodeY);
+                }
+
+                sink.record(
+                        minX + (index >> REGION_SHIFT),
+                        minZ + (index & REGION_MASK),
+                        info, (flags & FLAG_PENDING) != 0,
+                        loadedNeighborCount, populatedCount);
+            }
+
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * This returns true if a shard holds no records at all; this reads only
+     * the header and the count.
+     *
+     * @param file The file to check.
+     * @return True if the shard is empty.
+     */
+    public static boolean isEmpty(File file) {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            in.skipBytes(4 + 4 + 8 + 4 + 4);
+            return readVarInt(in) == 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    ////////////////////////////////
+    // Writing
+    //
+    /**
+     * This class collects the records of a shard, and then writes them out.
+     * Records must be added in order of their index within the region; that
+     * is, by x and then by z.
+     */
+    public static final class Writer {
+
+        private final long seed;
+        private final int regionX, regionZ;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+        private int count;
+        private int lastIndex = -1;
+
+        public Writer(long seed, int regionX, int regionZ) {
+            this.seed = seed;
+            this.regionX = regionX;
+            this.regionZ = regionZ;
+        }
+
+        /**
+         * This returns the number of records added so far.
+         *
+         * @return The record count.
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * This adds a record; the parameters are as for
+         * RecordSink.record().
+         */
+        public void add(int x, int z, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+            Preconditions.checkArgument(x >> REGION_SHIFT == regionX && z >> REGION_SHIFT == regionZ,
+                    "The chunk at %s, %s is not in this region.", x, z);
+
+            int index = ((x & REGION_MASK) << REGION_SHIFT) | (z & REGION_MASK);
+            Preconditions.checkArgument(index > lastIndex, "Records must be added in order.");
+
+            int flags = (info != ChunkInfoPacking.MISSING ? FLAG_INFO : 0) | (pending ? FLAG_PENDING : 0);
+
+            try {
+                writeVarInt(out, index - lastIndex - 1);
+                out.writeByte(flags);
+                out.writeByte(loadedNeighborCount);
+                out.writeByte(populatedCount);
+
+                if (info != ChunkInfoPacking.MISSING) {
+                    out.writeShort(ChunkInfoPacking.unpackHighestBlockY(info));
+                    out.writeShort(ChunkInfoPacking.unpackNodeY(info));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            lastIndex = index;
+            ++count;
+        }
+
+        /**
+         * This writes the shard to a file; like MapFileMap.write(), this
+         * writes a temp file and renames it over the original. All
+         * IOExceptions are wrapped as RuntimeExceptions.
+         *
+         * @param file The file to write.
+         */
+        public void write(File file) {
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+            try {
+                DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+                try {
+                    fileOut.writeInt(MAGIC);
+                    fileOut.writeInt(VERSION);
+                    fileOut.writeLong(seed);
+                    fileOut.writeInt(regionX);
+                    fileOut.writeInt(regionZ);
+                    writeVarInt(fileOut, count);
+                    body.writeTo(fileOut);
+                } finally {
+                    fileOut.close();
+                }
+
+                if (!tempFile.renameTo(file)) {
+                    file.delete();
+
+                    if (!tempFile.renameTo(file)) {
+                        throw new IOException(String.format("Unable to replace %s.", file));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint in schedule shard.");
+    }
+}
@@ -0,0 +1,253 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import org.bukkit.*;
+
+/**
+ * SegmentCache keeps the rasterized corridor segments that Connector builds,
+ * so that each chunk a segment passes through can clip the same compiled
+ * segment instead of rasterizing it again. Segments are keyed by their exact
+ * endpoints, direction included, and their width and height; the same two
+ * points connected the other way round are a different segment, since they
+ * can rasterize slightly differently.
+ *
+ * The cache is limited by the approximate number of bytes its segments use;
+ * the least recently used segments are dropped to stay under the limit.
+ * Segments are keyed by the world's UID, but the compiled segments still
+ * refer to their world, so call removeWorld() when a world is unloaded.
+ *
+ * @author DanJ
+ */
+public final class SegmentCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Space> segments = new LinkedHashMap<Key, Space>(16, 0.75f, true);
+    private final Map<Key, Long> segmentBytes = Maps.newHashMap();
+    private long bytes;
+    private long hits, misses, evictions;
+
+    /**
+     * This creates a cache that will hold segments using up to the number of
+     * bytes given.
+     *
+     * @param maxBytes The approximate limit on memory used.
+     */
+    public SegmentCache(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes may not be negative.");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * This returns the compiled space for the corridor segment from 'start' to
+     * 'end', building it if it is not already cached.
+     *
+     * The segment is compiled without holding the cache's lock, so other
+     * threads can use the cache meanwhile. If two threads build the same
+     * segment at once, the first one cached is kept, and both get that one.
+     *
+     * @param start The starting point of the segment.
+     * @param end The ending point of the segment.
+     * @param width The width, in blocks, of the segment.
+     * @param height The height, in blocks, of the segment.
+     * @return The segment's space; this is shared, but spaces are immutable.
+     */
+    public Space getSegment(Location start, Location end, int width, int height) {
+        Key key = new Key(start, end, width, height);
+
+        synchronized (this) {
+            Space segment = segments.get(key);
+
+            if (segment != null) {
+                ++hits;
+                return segment;
+            }
+
+            ++misses;
+        }
+
+        Space compiled = Space.linear(start, end, width, height).compile();
+        long size = estimateBytes(compiled);
+
+        synchronized (this) {
+            Space existing = segments.get(key);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (size <= maxBytes) {
+                segments.put(key, compiled);
+                segmentBytes.put(key, size);
+                bytes += size;
+                evict();
+            }
+        }
+
+        return compiled;
+    }
+
+    /**
+     * This drops every cached segment in the world given, so that the cache
+     * does not keep an unloaded world alive.
+     *
+     * @param world The world whose segments are to go.
+     */
+    public synchronized void removeWorld(World world) {
+        UUID worldId = world.getUID();
+        Iterator<Map.Entry<Key, Space>> iter = segments.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Key key = iter.next().getKey();
+
+            if (key.worldId.equals(worldId)) {
+                iter.remove();
+                bytes -= segmentBytes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * This drops every cached segment; the counters are kept.
+     */
+    public synchronized void clear() {
+        segments.clear();
+        segmentBytes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * This returns the number of lookups that found a cached segment.
+     *
+     * @return The hit count.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * This returns the number of lookups that had to build the segment.
+     *
+     * @return The miss count.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * This returns the number of segments dropped to stay under the byte
+     * limit.
+     *
+     * @return The eviction count.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * This returns the approximate number of bytes used by the cached
+     * segments.
+     *
+     * @return The byte count.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * This returns the number of segments in the cache.
+     *
+     * @return The segment count.
+     */
+    public synchronized int size() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d segments, %d bytes, %d hits, %d misses, %d evictions",
+                segments.size(), bytes, hits, misses, evictions);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Space>> iter = segments.entrySet().iterator();
+
+        while (bytes > maxBytes && iter.hasNext()) {
+            Key key = iter.next().getKey();
+            iter.remove();
+            bytes -= segmentBytes.remove(key);
+            ++evictions;
+        }
+    }
+
+    private static long estimateBytes(Space segment) {
+        if (segment instanceof SpanSpace) {
+            return ((SpanSpace) segment).getByteSize();
+        }
+
+        return 16;
+    }
+
+    /**
+     * This class identifies a segment; it holds the world's UID and the
+     * coordinates of the endpoints, not the Location objects, which are
+     * mutable and would keep the world alive.
+     */
+    private static final class Key {
+
+        private final UUID worldId;
+        private final double startX, startY, startZ;
+        private final double endX, endY, endZ;
+        private final int width, height;
+
+        public Key(Location start, Location end, int width, int height) {
+            this.worldId = start.getWorld().getUID();
+            this.startX = start.getX();
+            this.startY = start.getY();
+            this.startZ = start.getZ();
+            this.endX = end.getX();
+            this.endY = end.getY();
+            this.endZ = end.getZ();
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = worldId.hashCode();
+            result = 31 * result + hashDouble(startX);
+            result = 31 * result + hashDouble(startY);
+            result = 31 * result + hashDouble(startZ);
+            result = 31 * result + hashDouble(endX);
+            result = 31 * result + hashDouble(endY);
+            result = 31 * result + hashDouble(endZ);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+
+        private static int hashDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            return (int) (bits ^ (bits >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+
+                return worldId.equals(other.worldId)
+                        && startX == other.startX && startY == other.startY && startZ == other.startZ
+                        && endX == other.endX && endY == other.endY && endZ == other.endZ
+                        && width == other.width && height == other.height;
+            }
+
+            return false;
+        }
+    }
+}
@@ -7,6 +7,11 @@ package experimentalgeography;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.bukkit.*;
 import org.bukkit.block.*;
 
@@ -62,16 +67,19 @@ public abstract class Space {
      * Returns a space including all the blocks of this space that are inside
      * the chunk indicated, but no others.
      *
+     * The blocks are collected right away into a bitset for the chunk, so the
+     * result does not refer back to this space at all.
+     *
      * @param chunk The chunk that the new space is limited to.
      * @return The new space that is limited to the chunk.
      */
-    public final Space withinChunk(Chunk chunk) {
+    public final ChunkMaskSpace withinChunk(Chunk chunk) {
         int minX = chunk.getX() * 16;
         int minZ = chunk.getZ() * 16;
         int maxX = minX + 15;
         int maxZ = minZ + 15;
 
-        return within(minX, maxX, minZ, maxZ, chunk.getWorld());
+        return new ChunkMaskSpace(chunk, within(minX, maxX, minZ, maxZ, chunk.getWorld()));
     }
 
     /**
@@ -83,9 +91,14 @@ public abstract class Space {
      * @param minZ The minimum z coordinate allowed.
      * @param maxZ The maximum z coordinate allowed.
      * @param world The world whose blocks are accepted.
-     * @return A new space adjusted to contain only the blocks indicated.
+     * @return A new space adjusted to contain only the blocks indicated; this
+     * is the empty space if our bounds miss the area entirely.
      */
     public Space within(int minX, int maxX, int minZ, int maxZ, World world) {
+        if (!getBounds().intersects(minX, maxX, minZ, maxZ)) {
+            return empty();
+        }
+
         return new LimitedSpace(this, minX, maxX, minZ, maxZ, world);
     }
 
@@ -97,29 +110,209 @@ public abstract class Space {
      * @param dz The delta to apply in the z direction.
      * @return The new, adjusted space.
      */
-    public Space offset(final int dx, final int dy, final int dz) {
+    public Space offset(int dx, int dy, int dz) {
         if (dx == 0 && dy == 0 && dz == 0) {
             return this;
         }
 
-        final Space innerSpace = this;
+        return new OffsetSpace(this, dx, dy, dz);
+    }
+    /**
+     * Returns a space with the same blocks as this one, but compiled into
+     * sorted runs of blocks in each column; see SpanSpace. This visits every
+     * block once, so it's worth doing only for a space you'll query a lot.
+     *
+     * @return The compiled space; this is the empty space if there are no
+     * blocks.
+     * @throws IllegalArgumentException If the space has blocks in more than one
+     * world.
+     */
+    public Space compile() {
+        return SpanSpace.compile(this);
+    }
+    ////////////////////////////////
+    // Bounds
+    //
+    private volatile Bounds lazyBounds;
+
+    /**
+     * Returns the smallest box that holds every block of this space. This is
+     * computed once and cached; spaces use it to skip work for blocks and
+     * areas they can't possibly contain. Spaces may be shared between
+     * threads; if two threads race here, the bounds are computed twice, which
+     * is harmless.
+     *
+     * @return The bounding box; may be Bounds.EMPTY.
+     */
+    public final Bounds getBounds() {
+        if (lazyBounds == null) {
+            lazyBounds = computeBounds();
+        }
+
+        return lazyBounds;
+    }
+
+    /**
+     * This method works out the bounds that getBounds() returns. By default
+     * this visits every block, but each subclass here can do better and
+     * overrides it.
+     *
+     * @return The bounding box of this space.
+     */
+    protected Bounds computeBounds() {
+        final int[] box = {
+            Integer.MAX_VALUE, Integer.MIN_VALUE,
+            Integer.MAX_VALUE, Integer.MIN_VALUE,
+            Integer.MAX_VALUE, Integer.MIN_VALUE
+        };
 
-        return new Space() {
+        forEachBlock(new BlockAction() {
             @Override
-            public void forEachBlock(final BlockAction action) {
-                innerSpace.forEachBlock(new BlockAction() {
-                    @Override
-                    public void apply(int x, int y, int z, World world) {
-                        action.apply(x + dx, y + dy, z + dz, world);
-                    }
-                });
+            public void apply(int x, int y, int z, World world) {
+                box[0] = Math.min(box[0], x);
+                box[1] = Math.max(box[1], x);
+                box[2] = Math.min(box[2], y);
+                box[3] = Math.max(box[3], y);
+                box[4] = Math.min(box[4], z);
+                box[5] = Math.max(box[5], z);
             }
-        };
+        });
+
+        if (box[0] > box[1]) {
+            return Bounds.EMPTY;
+        }
+
+        return new Bounds(box[0], box[1], box[2], box[3], box[4], box[5]);
+    }
+
+    /**
+     * This class is an axis-aligned box of blocks; all the bounds are
+     * inclusive. Like ChunkPosition, it's a record and exposes its fields.
+     */
+    public static final class Bounds {
+
+        /**
+         * This is the box that contains nothing; its minimums are greater than
+         * its maximums.
+         */
+        public static final Bounds EMPTY = new Bounds(0, -1, 0, -1, 0, -1);
+        public final int minX, maxX, minY, maxY, minZ, maxZ;
+
+        public Bounds(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.minZ = minZ;
+            this.maxZ = maxZ;
+        }
+
+        /**
+         * This returns true if the box contains no blocks at all.
+         *
+         * @return True for an empty box.
+         */
+        public boolean isEmpty() {
+            return minX > maxX || minY > maxY || minZ > maxZ;
+        }
+
+        /**
+         * This returns true if the block given is inside this box.
+         *
+         * @param x The x coordinate of the block to test.
+         * @param y The y coordinate of the block to test.
+         * @param z The z coordinate of the block to test.
+         * @return True if the block is inside.
+         */
+        public boolean contains(int x, int y, int z) {
+            return x >= minX && x <= maxX
+                    && y >= minY && y <= maxY
+                    && z >= minZ && z <= maxZ;
+        }
+
+        /**
+         * This returns true if this box overlaps the columns given; the y
+         * co-ordinates are not considered.
+         *
+         * @param minX The minimum x coordinate of the area.
+         * @param maxX The maximum x coordinate of the area.
+         * @param minZ The minimum z coordinate of the area.
+         * @param maxZ The maximum z coordinate of the area.
+         * @return True if any column of this box is in the area.
+         */
+        public boolean intersects(int minX, int maxX, int minZ, int maxZ) {
+            return !isEmpty()
+                    && this.minX <= maxX && this.maxX >= minX
+                    && this.minZ <= maxZ && this.maxZ >= minZ;
+        }
+
+        /**
+         * This returns the part of this box that is within the columns given.
+         *
+         * @param minX The minimum x coordinate of the area.
+         * @param maxX The maximum x coordinate of the area.
+         * @param minZ The minimum z coordinate of the area.
+         * @param maxZ The maximum z coordinate of the area.
+         * @return The clipped box; may be EMPTY.
+         */
+        public Bounds limit(int minX, int maxX, int minZ, int maxZ) {
+            if (!intersects(minX, maxX, minZ, maxZ)) {
+                return EMPTY;
+            }
+
+            return new Bounds(
+                    Math.max(this.minX, minX), Math.min(this.maxX, maxX),
+                    this.minY, this.maxY,
+                    Math.max(this.minZ, minZ), Math.min(this.maxZ, maxZ));
+        }
+
+        /**
+         * This returns a box containing both this box and 'other'.
+         *
+         * @param other The other box to include.
+         * @return The combined box.
+         */
+        public Bounds union(Bounds other) {
+            if (other.isEmpty()) {
+                return this;
+            } else if (isEmpty()) {
+                return other;
+            }
+
+            return new Bounds(
+                    Math.min(minX, other.minX), Math.max(maxX, other.maxX),
+                    Math.min(minY, other.minY), Math.max(maxY, other.maxY),
+                    Math.min(minZ, other.minZ), Math.max(maxZ, other.maxZ));
+        }
+
+        /**
+         * This returns this box, shifted through space.
+         *
+         * @param dx The delta to apply in the x direction.
+         * @param dy The delta to apply in the y direction.
+         * @param dz The delta to apply in the z direction.
+         * @return The shifted box.
+         */
+        public Bounds offset(int dx, int dy, int dz) {
+            if (isEmpty()) {
+                return this;
+            }
+
+            return new Bounds(
+                    minX + dx, maxX + dx,
+                    minY + dy, maxY + dy,
+                    minZ + dz, maxZ + dz);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d..%d, %d..%d, %d..%d", minX, maxX, minY, maxY, minZ, maxZ);
+        }
     }
     ////////////////////////////////
     // Block Access
     //
-    private Set<Block> lazyBlocks;
+    private volatile Set<Block> lazyBlocks;
 
     /**
      * Returns an immutable set of all the blocks in the space. This set is
@@ -132,14 +325,26 @@ public abstract class Space {
      */
     public final Set<Block> getBlocks() {
         if (lazyBlocks == null) {
-            BlockCollectorSet blocks = new BlockCollectorSet();
-            forEachBlock(blocks);
-            lazyBlocks = Collections.unmodifiableSet(blocks);
+            lazyBlocks = Collections.unmodifiableSet(collectBlocks());
         }
 
         return lazyBlocks;
     }
 
+    /**
+     * This method builds the set that getBlocks() returns; it is called only
+     * once, and the result is cached. By default this collects the blocks from
+     * forEachBlock() into a sorted set, but subclasses that have a more compact
+     * representation can override this.
+     *
+     * @return A set containing each block of the space once.
+     */
+    protected Set<Block> collectBlocks() {
+        BlockCollectorSet blocks = new BlockCollectorSet();
+        forEachBlock(blocks);
+        return blocks;
+    }
+
     /**
      * Returns true if the indicated block is included in this space. By default
      * this is implemented by getBlocks(), and it should always agree with that
@@ -173,6 +378,194 @@ public abstract class Space {
      */
     public abstract void forEachBlock(BlockAction action);
 
+    /**
+     * Gives you each block in this space in turn, like forEachBlock(), but
+     * this calls action.apply() only once per block.
+     *
+     * This does not create Block objects; it remembers which blocks it has
+     * seen with a bitmap over getBounds() if that is small enough, or with a
+     * LongHashSet of packed co-ordinates if not.
+     *
+     * @param action The apply method of this object is called once for each
+     * block.
+     */
+    public void forEachDistinctBlock(BlockAction action) {
+        Bounds bounds = getBounds();
+
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        long volume = (long) (bounds.maxX - bounds.minX + 1)
+                * (bounds.maxY - bounds.minY + 1)
+                * (bounds.maxZ - bounds.minZ + 1);
+
+        if (volume <= MAX_BITMAP_VOLUME) {
+            forEachBlock(new BitmapDistinctFilter(bounds, action));
+        } else {
+            forEachBlock(new HashDistinctFilter(action));
+        }
+    }
+
+    ////////////////////////////////
+    // Parallel Enumeration
+    //
+    /**
+     * Returns spaces that together hold all the blocks of this space, so they
+     * can be visited on separate threads. Unions split by component, and
+     * compiled spaces and chunk masks split into ranges of columns; other
+     * spaces don't split at all, and return just themselves.
+     *
+     * The parts may overlap wherever this space's own blocks would be provided
+     * more than once by forEachBlock().
+     *
+     * @param parts The number of parts wanted; you may get fewer.
+     * @return The parts; this is empty for an empty space, or any other space
+     * whose bounds are empty. A part may still turn out to have no blocks.
+     */
+    public List<Space> split(int parts) {
+        if (getBounds().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(this);
+    }
+
+    /**
+     * Gives you each block in this space, like forEachBlock(), but splits the
+     * space with split() and lets the executor's threads help visit the
+     * parts. This thread visits parts too, and only ever waits for parts that
+     * another thread has already started; so this may be called from one of
+     * the executor's own threads, even when all of them are busy. In that
+     * case this thread just visits every part itself.
+     *
+     * The action is called from several threads at once, so it must be
+     * thread-safe. If it fails, the first failure is thrown once every part
+     * that was started has finished.
+     *
+     * @param action The apply method of this object is called for each block
+     * (maybe more than once!)
+     * @param executor The executor whose threads may help.
+     * @param parts The number of parts to split the space into.
+     */
+    public void forEachBlockInParallel(final BlockAction action, Executor executor, int parts) {
+        final List<Space> pieces = split(parts);
+
+        if (pieces.size() <= 1) {
+            for (Space piece : pieces) {
+                piece.forEachBlock(action);
+            }
+
+            return;
+        }
+
+        final AtomicInteger nextPiece = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(pieces.size());
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+
+                while ((index = nextPiece.getAndIncrement()) < pieces.size()) {
+                    try {
+                        if (failure.get() == null) {
+                            pieces.get(index).forEachBlock(action);
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+
+        for (int i = 1; i < pieces.size(); ++i) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // this thread will do the rest itself.
+                break;
+            }
+        }
+
+        worker.run();
+
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                // the running parts can't be abandoned; they use the caller's
+                // action, so we must wait for them.
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * This is the largest bounding box, in blocks, that forEachDistinctBlock()
+     * will cover with a bitmap; this is a 512K bitmap.
+     */
+    private static final long MAX_BITMAP_VOLUME = 1L << 22;
+
+    /**
+     * This packs a block's co-ordinates into a single long; x and z get 26
+     * bits each (enough for the world border) and y gets 12 bits.
+     *
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The packed co-ordinates.
+     */
+    public static long packBlock(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38)
+                | ((long) (z & 0x3FFFFFF) << 12)
+                | (y & 0xFFF);
+    }
+
+    /**
+     * This extracts the x co-ordinate from a value made by packBlock().
+     *
+     * @param packed The packed co-ordinates.
+     * @return The x co-ordinate.
+     */
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    /**
+     * This extracts the y co-ordinate from a value made by packBlock().
+     *
+     * @param packed The packed co-ordinates.
+     * @return The y co-ordinate.
+     */
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    /**
+     * This extracts the z co-ordinate from a value made by packBlock().
+     *
+     * @param packed The packed co-ordinates.
+     * @return The z co-ordinate.
+     */
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
     /**
      * This interface is for objects that receive the blocks from
      * forEachBlock(); by taking the co-ordinates as separate parameters, we can
@@ -183,6 +576,89 @@ public abstract class Space {
         void apply(int x, int y, int z, World world);
     }
 
+    /**
+     * This class passes blocks on to another action, but only the first time
+     * it sees each one; it tracks them with a bitmap covering a bounding box.
+     * Blocks from any other world than the first are tracked separately.
+     */
+    private static final class BitmapDistinctFilter implements BlockAction {
+
+        private final Bounds bounds;
+        private final BlockAction action;
+        private final int sizeX, sizeY;
+        private final long[] seen;
+        private World world;
+        private HashDistinctFilter otherWorlds;
+
+        public BitmapDistinctFilter(Bounds bounds, BlockAction action) {
+            this.bounds = bounds;
+            this.action = action;
+            this.sizeX = bounds.maxX - bounds.minX + 1;
+            this.sizeY = bounds.maxY - bounds.minY + 1;
+            int sizeZ = bounds.maxZ - bounds.minZ + 1;
+            this.seen = new long[(sizeX * sizeY * sizeZ + 63) >>> 6];
+        }
+
+        @Override
+        public void apply(int x, int y, int z, World world) {
+            if (this.world == null) {
+                this.world = world;
+            }
+
+            if (world != this.world || !bounds.contains(x, y, z)) {
+                if (otherWorlds == null) {
+                    otherWorlds = new HashDistinctFilter(action);
+                }
+
+                otherWorlds.apply(x, y, z, world);
+                return;
+            }
+
+            int bit = ((z - bounds.minZ) * sizeY + (y - bounds.minY)) * sizeX + (x - bounds.minX);
+            long mask = 1L << bit;
+
+            if ((seen[bit >>> 6] & mask) == 0) {
+                seen[bit >>> 6] |= mask;
+                action.apply(x, y, z, world);
+            }
+        }
+    }
+
+    /**
+     * This class passes blocks on to another action, but only the first time
+     * it sees each one; it tracks them as packed co-ordinates in a hash set for
+     * each world.
+     */
+    private static final class HashDistinctFilter implements BlockAction {
+
+        private final BlockAction action;
+        private final Map<World, LongHashSet> seenByWorld = Maps.newIdentityHashMap();
+        private World lastWorld;
+        private LongHashSet lastSeen;
+
+        public HashDistinctFilter(BlockAction action) {
+            this.action = action;
+        }
+
+        @Override
+        public void apply(int x, int y, int z, World world) {
+            if (world != lastWorld || lastSeen == null) {
+                lastSeen = seenByWorld.get(world);
+
+                if (lastSeen == null) {
+                    lastSeen = new LongHashSet();
+                    seenByWorld.put(world, lastSeen);
+                }
+
+                lastWorld = world;
+            }
+
+            if (lastSeen.add(packBlock(x, y, z))) {
+                action.apply(x, y, z, world);
+            }
+        }
+    }
+
     /**
      * This class is a TreeSet that collects blocks from forEachBlock(),
      * de-duping as it goes.
@@ -224,15 +700,35 @@ public abstract class Space {
             return this;
         }
 
+        @Override
+        public Space compile() {
+            return this;
+        }
+
+        @Override
+        public List<Space> split(int parts) {
+            return Collections.emptyList();
+        }
+
         @Override
         public boolean contains(int x, int y, int z, World world) {
             return false;
         }
 
+        @Override
+        protected Bounds computeBounds() {
+            return Bounds.EMPTY;
+        }
+
         @Override
         public void forEachBlock(BlockAction action) {
             // an empty space has no blocks!
         }
+
+        @Override
+        public void forEachDistinctBlock(BlockAction action) {
+            // nor any distinct ones!
+        }
     }
 
     /**
@@ -243,12 +739,48 @@ public abstract class Space {
 
         private final Location start, end;
         private final int width, height;
+        private final int[] centerXs, centerYs, centerZs;
 
         public LinearSpace(Location start, Location end, int width, int height) {
             this.start = start;
             this.end = end;
             this.width = width;
             this.height = height;
+
+            // we sample the line once, here; forEachBlock() and contains() both
+            // work from these samples, so they always agree.
+            double dist = start.distance(end);
+            int steps = 0;
+            for (double i = dist; i >= 0; --i) {
+                ++steps;
+            }
+
+            int[] xs = new int[steps];
+            int[] ys = new int[steps];
+            int[] zs = new int[steps];
+
+            // samples often land in the same block as the one before; we
+            // keep only one of each run of these.
+            int index = 0;
+            for (double i = dist; i >= 0; --i) {
+                double s = i / dist;
+                double e = 1.0 - s;
+
+                int x = (int) (start.getX() * s + end.getX() * e);
+                int y = (int) (start.getY() * s + end.getY() * e);
+                int z = (int) (start.getZ() * s + end.getZ() * e);
+
+                if (index == 0 || x != xs[index - 1] || y != ys[index - 1] || z != zs[index - 1]) {
+                    xs[index] = x;
+                    ys[index] = y;
+                    zs[index] = z;
+                    ++index;
+                }
+            }
+
+            this.centerXs = Arrays.copyOf(xs, index);
+            this.centerYs = Arrays.copyOf(ys, index);
+            this.centerZs = Arrays.copyOf(zs, index);
         }
 
         @Override
@@ -259,31 +791,201 @@ public abstract class Space {
                     width, height);
         }
 
+        @Override
+        public Space within(int minX, int maxX, int minZ, int maxZ, World world) {
+            if (world != start.getWorld()) {
+                return empty();
+            }
+
+            return super.within(minX, maxX, minZ, maxZ, world);
+        }
+
+        @Override
+        protected Bounds computeBounds() {
+            if (centerXs.length == 0 || width <= 0 || height <= 0) {
+                return Bounds.EMPTY;
+            }
+
+            int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+            int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+            int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+            for (int i = 0; i < centerXs.length; ++i) {
+                minX = Math.min(minX, centerXs[i]);
+                maxX = Math.max(maxX, centerXs[i]);
+                minY = Math.min(minY, centerYs[i]);
+                maxY = Math.max(maxY, centerYs[i]);
+                minZ = Math.min(minZ, centerZs[i]);
+                maxZ = Math.max(maxZ, centerZs[i]);
+            }
+
+            int halfWidth = width / 2;
+            return new Bounds(
+                    minX - halfWidth, maxX - halfWidth + width - 1,
+                    minY, maxY + height - 1,
+                    minZ - halfWidth, maxZ - halfWidth + width - 1);
+        }
+
+        /**
+         * This tests the block against the box placed at each sample point of
+         * the line; this is exactly the set of blocks forEachBlock() produces,
+         * but we need not generate any of them.
+         */
+        @Override
+        public boolean contains(int x, int y, int z, World world) {
+            if (world != start.getWorld() || !getBounds().contains(x, y, z)) {
+                return false;
+            }
+
+            int halfWidth = width / 2;
+
+            for (int i = 0; i < centerXs.length; ++i) {
+                int dx = x - centerXs[i] + halfWidth;
+                int dy = y - centerYs[i];
+                int dz = z - centerZs[i] + halfWidth;
+
+                if (dx >= 0 && dx < width
+                        && dy >= 0 && dy < height
+                        && dz >= 0 && dz < width) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * This stamps the box at the first sample, and then at each later
+         * sample stamps only the face of the box that is new, since the rest
+         * of it was covered by the box before. This gives the same blocks as
+         * stamping the whole box every time, with far fewer repeats.
+         */
         @Override
         public void forEachBlock(BlockAction action) {
+            if (centerXs.length == 0) {
+                return;
+            }
+
             World world = start.getWorld();
-            double dist = start.distance(end);
+            Brush brush = Brush.of(width, height);
 
-            for (double i = dist; i >= 0; --i) {
-                double s = i / dist;
-                double e = 1.0 - s;
+            for (int i = 0; i < centerXs.length; ++i) {
+                int x = centerXs[i];
+                int y = centerYs[i];
+                int z = centerZs[i];
+                int[] offsets = i == 0
+                        ? brush.getFull()
+                        : brush.getLeadingFace(x - centerXs[i - 1], y - centerYs[i - 1], z - centerZs[i - 1]);
 
-                int x = (int) (start.getX() * s + end.getX() * e);
-                int y = (int) (start.getY() * s + end.getY() * e);
-                int z = (int) (start.getZ() * s + end.getZ() * e);
+                for (int o = 0; o < offsets.length; o += 3) {
+                    action.apply(x + offsets[o], y + offsets[o + 1], z + offsets[o + 2], world);
+                }
+            }
+        }
+    }
+
+    /**
+     * This class holds the offsets of the blocks in the box that LinearSpace
+     * stamps at each point of its line, and also the offsets of just the face
+     * of the box that is uncovered when the box moves by one block in any
+     * direction. Brushes are built once per size and shared.
+     */
+    private static final class Brush {
+
+        private static final Map<Long, Brush> brushes = Maps.newHashMap();
+        private final int[] full;
+        // indexed by (dx + 1) * 9 + (dy + 1) * 3 + (dz + 1)
+        private final int[][] leadingFaces = new int[27][];
+
+        private Brush(int width, int height) {
+            int halfWidth = width / 2;
+            // a box that moved further than its own size shares nothing with
+            // where it was, so its whole self is 'new'.
+            this.full = collectOffsets(width, height, halfWidth, width, height, width);
 
-                for (int dx = 0; dx < width; ++dx) {
-                    for (int dy = 0; dy < height; ++dy) {
-                        for (int dz = 0; dz < width; ++dz) {
-                            int bx = x + dx - (width / 2);
-                            int by = y + dy;
-                            int bz = z + dz - (width / 2);
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dy = -1; dy <= 1; ++dy) {
+                    for (int dz = -1; dz <= 1; ++dz) {
+                        leadingFaces[faceIndex(dx, dy, dz)]
+                                = collectOffsets(width, height, halfWidth, dx, dy, dz);
+                    }
+                }
+            }
+        }
+
+        /**
+         * This returns the brush for a box of the size given.
+         *
+         * @param width The width (in both x and z) of the box.
+         * @param height The height of the box.
+         * @return The brush, which may be shared.
+         */
+        public static Brush of(int width, int height) {
+            Long key = ((long) width << 32) | (height & 0xFFFFFFFFL);
+
+            synchronized (brushes) {
+                Brush brush = brushes.get(key);
 
-                            action.apply(bx, by, bz, world);
+                if (brush == null) {
+                    brush = new Brush(width, height);
+                    brushes.put(key, brush);
+                }
+
+                return brush;
+            }
+        }
+
+        /**
+         * This returns the offsets of every block in the box, as x,y,z
+         * triples.
+         */
+        public int[] getFull() {
+            return full;
+        }
+
+        /**
+         * This returns the offsets of the blocks in the box that were not in
+         * the box before it moved by the delta given, as x,y,z triples. If
+         * the box moved more than one block in any direction, this is the
+         * full box.
+         */
+        public int[] getLeadingFace(int dx, int dy, int dz) {
+            if (dx < -1 || dx > 1 || dy < -1 || dy > 1 || dz < -1 || dz > 1) {
+                return full;
+            }
+
+            return leadingFaces[faceIndex(dx, dy, dz)];
+        }
+
+        private static int faceIndex(int dx, int dy, int dz) {
+            return (dx + 1) * 9 + (dy + 1) * 3 + (dz + 1);
+        }
+
+        /**
+         * This collects the offsets of the box that were not in the box before
+         * it moved by the delta given.
+         */
+        private static int[] collectOffsets(int width, int height, int halfWidth, int dx, int dy, int dz) {
+            int[] offsets = new int[Math.max(0, width * height * width * 3)];
+            int count = 0;
+
+            for (int ox = 0; ox < width; ++ox) {
+                for (int oy = 0; oy < height; ++oy) {
+                    for (int oz = 0; oz < width; ++oz) {
+                        boolean inPrevious = ox + dx >= 0 && ox + dx < width
+                                && oy + dy >= 0 && oy + dy < height
+                                && oz + dz >= 0 && oz + dz < width;
+
+                        if (!inPrevious) {
+                            offsets[count++] = ox - halfWidth;
+                            offsets[count++] = oy;
+                            offsets[count++] = oz - halfWidth;
                         }
                     }
                 }
             }
+
+            return Arrays.copyOf(offsets, count);
         }
     }
 
@@ -320,7 +1022,8 @@ public abstract class Space {
                 int newMinZ = Math.max(this.minZ, minZ);
                 int newMaxZ = Math.min(this.maxZ, maxZ);
 
-                if (newMinX <= newMaxX && newMinZ <= newMaxZ) {
+                if (newMinX <= newMaxX && newMinZ <= newMaxZ
+                        && inner.getBounds().intersects(newMinX, newMaxX, newMinZ, newMaxZ)) {
                     return new LimitedSpace(inner, newMinX, newMaxX, newMinZ, newMaxZ, world);
                 }
             }
@@ -337,6 +1040,24 @@ public abstract class Space {
                     world);
         }
 
+        @Override
+        protected Bounds computeBounds() {
+            return inner.getBounds().limit(minX, maxX, minZ, maxZ);
+        }
+
+        @Override
+        public List<Space> split(int parts) {
+            List<Space> pieces = Lists.newArrayList();
+
+            for (Space piece : inner.split(parts)) {
+                if (piece.getBounds().intersects(minX, maxX, minZ, maxZ)) {
+                    pieces.add(new LimitedSpace(piece, minX, maxX, minZ, maxZ, world));
+                }
+            }
+
+            return pieces;
+        }
+
         @Override
         public boolean contains(int x, int y, int z, World world) {
             return isInLimit(x, z, world) && inner.contains(x, y, z, world);
@@ -355,6 +1076,66 @@ public abstract class Space {
         }
     }
 
+    /**
+     * This class wraps another space and shifts all its blocks. Used to
+     * implement offset() for spaces that can't shift themselves; offsetting
+     * one of these again just adjusts the deltas, so they never stack up.
+     */
+    private static final class OffsetSpace extends Space {
+
+        private final Space inner;
+        private final int dx, dy, dz;
+
+        public OffsetSpace(Space inner, int dx, int dy, int dz) {
+            this.inner = inner;
+            this.dx = dx;
+            this.dy = dy;
+            this.dz = dz;
+        }
+
+        @Override
+        public Space offset(int dx, int dy, int dz) {
+            return inner.offset(this.dx + dx, this.dy + dy, this.dz + dz);
+        }
+
+        @Override
+        public Space within(int minX, int maxX, int minZ, int maxZ, World world) {
+            Space limited = inner.within(minX - dx, maxX - dx, minZ - dz, maxZ - dz, world);
+            return limited.offset(dx, dy, dz);
+        }
+
+        @Override
+        protected Bounds computeBounds() {
+            return inner.getBounds().offset(dx, dy, dz);
+        }
+
+        @Override
+        public List<Space> split(int parts) {
+            List<Space> pieces = Lists.newArrayList();
+
+            for (Space piece : inner.split(parts)) {
+                pieces.add(piece.offset(dx, dy, dz));
+            }
+
+            return pieces;
+        }
+
+        @Override
+        public boolean contains(int x, int y, int z, World world) {
+            return inner.contains(x - dx, y - dy, z - dz, world);
+        }
+
+        @Override
+        public void forEachBlock(final BlockAction action) {
+            inner.forEachBlock(new BlockAction() {
+                @Override
+                public void apply(int x, int y, int z, World world) {
+                    action.apply(x + dx, y + dy, z + dz, world);
+                }
+            });
+        }
+    }
+
     /**
      * This class contains a list of component spaces, and provides every block
      * for the lot of them.
@@ -369,6 +1150,10 @@ public abstract class Space {
 
         @Override
         public Space union(Space other) {
+            if (other == this || other instanceof EmptySpace) {
+                return this;
+            }
+
             List<Space> combined = Lists.newArrayList();
             Collections.addAll(combined, components);
             if (other instanceof UnionedSpace) {
@@ -382,19 +1167,111 @@ public abstract class Space {
 
         @Override
         public Space within(int minX, int maxX, int minZ, int maxZ, World world) {
-            Space[] limited = new Space[components.length];
+            List<Space> limited = Lists.newArrayList();
+
+            for (Space s : components) {
+                Space l = s.within(minX, maxX, minZ, maxZ, world);
+
+                if (!(l instanceof EmptySpace)) {
+                    limited.add(l);
+                }
+            }
+
+            if (limited.isEmpty()) {
+                return empty();
+            } else if (limited.size() == 1) {
+                return limited.get(0);
+            }
+
+            return new UnionedSpace(limited.toArray(new Space[limited.size()]));
+        }
+
+        @Override
+        protected Bounds computeBounds() {
+            Bounds bounds = Bounds.EMPTY;
+
+            for (Space s : components) {
+                bounds = bounds.union(s.getBounds());
+            }
+
+            return bounds;
+        }
+
+        /**
+         * This deals the components out into groups, biggest first, always to
+         * the group with the least volume so far; each group becomes one part.
+         * Components with empty bounds are left out.
+         */
+        @Override
+        public List<Space> split(int parts) {
+            List<Space> sorted = Lists.newArrayList();
+
+            for (Space s : components) {
+                if (!s.getBounds().isEmpty()) {
+                    sorted.add(s);
+                }
+            }
+
+            if (sorted.isEmpty()) {
+                return Collections.emptyList();
+            } else if (parts <= 1 || sorted.size() == 1) {
+                return Collections.<Space>singletonList(this);
+            }
+
+            Collections.sort(sorted, new Comparator<Space>() {
+                @Override
+                public int compare(Space left, Space right) {
+                    return Long.signum(volumeOf(right) - volumeOf(left));
+                }
+            });
+
+            int groupCount = Math.min(parts, sorted.size());
+            List<List<Space>> groups = Lists.newArrayList();
+            long[] groupVolumes = new long[groupCount];
 
-            for (int i = 0; i < limited.length; ++i) {
-                limited[i] = components[i].within(minX, maxX, minZ, maxZ, world);
+            for (int i = 0; i < groupCount; ++i) {
+                groups.add(Lists.<Space>newArrayList());
             }
 
-            return new UnionedSpace(limited);
+            for (Space s : sorted) {
+                int lightest = 0;
+
+                for (int i = 1; i < groupCount; ++i) {
+                    if (groupVolumes[i] < groupVolumes[lightest]) {
+                        lightest = i;
+                    }
+                }
+
+                groups.get(lightest).add(s);
+                groupVolumes[lightest] += volumeOf(s);
+            }
+
+            List<Space> pieces = Lists.newArrayList();
+
+            for (List<Space> group : groups) {
+                if (group.size() == 1) {
+                    pieces.add(group.get(0));
+                } else {
+                    pieces.add(new UnionedSpace(group.toArray(new Space[group.size()])));
+                }
+            }
+
+            return pieces;
+        }
+
+        private static long volumeOf(Space space) {
+            Bounds b = space.getBounds();
+            return (long) (b.maxX - b.minX + 1) * (b.maxY - b.minY + 1) * (b.maxZ - b.minZ + 1);
         }
 
         @Override
         public boolean contains(int x, int y, int z, World world) {
+            if (!getBounds().contains(x, y, z)) {
+                return false;
+            }
+
             for (Space s : components) {
-                if (s.contains(x, y, z, world)) {
+                if (s.getBounds().contains(x, y, z) && s.contains(x, y, z, world)) {
                     return true;
                 }
             }
@@ -0,0 +1,452 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import org.bukkit.*;
+
+/**
+ * SpanSpace is a space compiled down to columns; for each x,z column that has
+ * any blocks, it keeps a sorted list of runs of y co-ordinates, with
+ * overlapping and adjacent runs merged. You get one from Space.compile().
+ *
+ * The columns are kept sorted by x and then z, and the runs for all of them
+ * are packed into a single int array, so this is quite compact and has no
+ * per-block objects at all. contains() is a pair of binary searches, and
+ * union() and within() work on whole columns without visiting each block.
+ *
+ * All the blocks of a SpanSpace are in a single world.
+ *
+ * @author DanJ
+ */
+public final class SpanSpace extends Space {
+
+    private final World world;
+    // columnKeys[i] identifies column i; see columnKey().
+    private final long[] columnKeys;
+    // the runs of column i are at spans[spanOffsets[i]] up to (but not
+    // including) spans[spanOffsets[i + 1]]; each run is a pair of inclusive
+    // y co-ordinates, bottom first.
+    private final int[] spanOffsets;
+    private final int[] spans;
+
+    private SpanSpace(World world, long[] columnKeys, int[] spanOffsets, int[] spans) {
+        this.world = Preconditions.checkNotNull(world);
+        this.columnKeys = columnKeys;
+        this.spanOffsets = spanOffsets;
+        this.spans = spans;
+    }
+
+    /**
+     * This compiles any space into a SpanSpace; if the space has no blocks at
+     * all, this returns the empty space instead.
+     *
+     * @param source The space to compile.
+     * @return The compiled space, or the empty space.
+     * @throws IllegalArgumentException If the space has blocks in more than one
+     * world.
+     */
+    static Space compile(Space source) {
+        final World[] world = {null};
+        final long[][] blocks = {new long[64]};
+        final int[] count = {0};
+
+        source.forEachDistinctBlock(new BlockAction() {
+            @Override
+            public void apply(int x, int y, int z, World blockWorld) {
+                if (world[0] == null) {
+                    world[0] = blockWorld;
+                } else if (world[0] != blockWorld) {
+                    throw new IllegalArgumentException(String.format(
+                            "The space has blocks in both '%s' and '%s'.",
+                            world[0].getName(), blockWorld.getName()));
+                }
+
+                if (count[0] == blocks[0].length) {
+                    blocks[0] = Arrays.copyOf(blocks[0], count[0] * 2);
+                }
+
+                blocks[0][count[0]++] = sortableBlock(x, y, z);
+            }
+        });
+
+        if (count[0] == 0) {
+            return empty();
+        }
+
+        long[] sorted = blocks[0];
+        int n = count[0];
+        Arrays.sort(sorted, 0, n);
+
+        Builder b = new Builder(world[0]);
+
+        for (int i = 0; i < n; ++i) {
+            long block = sorted[i];
+            b.add(sortableX(block), sortableZ(block), sortableY(block), sortableY(block));
+        }
+
+        return b.build();
+    }
+
+    ////////////////////////////////
+    // Space
+    //
+    @Override
+    public Space union(Space other) {
+        if (other instanceof SpanSpace && ((SpanSpace) other).world == world) {
+            return merge(this, (SpanSpace) other);
+        }
+
+        return super.union(other);
+    }
+
+    @Override
+    public Space within(int minX, int maxX, int minZ, int maxZ, World world) {
+        if (world != this.world || !getBounds().intersects(minX, maxX, minZ, maxZ)) {
+            return empty();
+        }
+
+        Builder b = new Builder(world);
+        int first = firstColumnAtOrAfter(columnKey(minX, Integer.MIN_VALUE));
+
+        for (int c = first; c < columnKeys.length; ++c) {
+            int x = columnX(columnKeys[c]);
+            int z = columnZ(columnKeys[c]);
+
+            if (x > maxX) {
+                break;
+            } else if (z >= minZ && z <= maxZ) {
+                for (int s = spanOffsets[c]; s < spanOffsets[c + 1]; s += 2) {
+                    b.add(x, z, spans[s], spans[s + 1]);
+                }
+            }
+        }
+
+        return b.build();
+    }
+
+    @Override
+    public Space offset(int dx, int dy, int dz) {
+        if (dx == 0 && dy == 0 && dz == 0) {
+            return this;
+        }
+
+        long[] keys = new long[columnKeys.length];
+        for (int c = 0; c < keys.length; ++c) {
+            keys[c] = columnKey(columnX(columnKeys[c]) + dx, columnZ(columnKeys[c]) + dz);
+        }
+
+        int[] shifted = new int[spans.length];
+        for (int s = 0; s < shifted.length; ++s) {
+            shifted[s] = spans[s] + dy;
+        }
+
+        return new SpanSpace(world, keys, spanOffsets, shifted);
+    }
+
+    @Override
+    protected Bounds computeBounds() {
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+        for (int c = 0; c < columnKeys.length; ++c) {
+            int z = columnZ(columnKeys[c]);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            minY = Math.min(minY, spans[spanOffsets[c]]);
+            maxY = Math.max(maxY, spans[spanOffsets[c + 1] - 1]);
+        }
+
+        return new Bounds(
+                columnX(columnKeys[0]), columnX(columnKeys[columnKeys.length - 1]),
+                minY, maxY,
+                minZ, maxZ);
+    }
+
+    @Override
+    public boolean contains(int x, int y, int z, World world) {
+        if (world != this.world) {
+            return false;
+        }
+
+        int c = Arrays.binarySearch(columnKeys, columnKey(x, z));
+
+        if (c < 0) {
+            return false;
+        }
+
+        // find the last run that starts at or below y
+        int lo = 0, hi = (spanOffsets[c + 1] - spanOffsets[c]) / 2 - 1;
+        int base = spanOffsets[c];
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = spans[base + mid * 2];
+
+            if (start > y) {
+                hi = mid - 1;
+            } else if (spans[base + mid * 2 + 1] < y) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * This provides the blocks column by column, in the same x, z, y order
+     * that getBlocks() uses; there are no duplicates.
+     */
+    @Override
+    public void forEachBlock(BlockAction action) {
+        for (int c = 0; c < columnKeys.length; ++c) {
+            int x = columnX(columnKeys[c]);
+            int z = columnZ(columnKeys[c]);
+
+            for (int s = spanOffsets[c]; s < spanOffsets[c + 1]; s += 2) {
+                for (int y = spans[s]; y <= spans[s + 1]; ++y) {
+                    action.apply(x, y, z, world);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forEachDistinctBlock(BlockAction action) {
+        forEachBlock(action);
+    }
+
+    @Override
+    public Space compile() {
+        return this;
+    }
+
+    /**
+     * This splits the space into runs of whole columns, each with about the
+     * same number of blocks; the parts do not overlap.
+     */
+    @Override
+    public List<Space> split(int parts) {
+        if (columnKeys.length == 0) {
+            return Collections.emptyList();
+        } else if (parts <= 1 || columnKeys.length == 1) {
+            return Collections.<Space>singletonList(this);
+        }
+
+        long total = size();
+        List<Space> pieces = Lists.newArrayList();
+        int first = 0;
+        long sofar = 0;
+
+        for (int c = 0; c < columnKeys.length; ++c) {
+            for (int s = spanOffsets[c]; s < spanOffsets[c + 1]; s += 2) {
+                sofar += spans[s + 1] - spans[s] + 1;
+            }
+
+            boolean last = c == columnKeys.length - 1;
+            if (last || sofar * parts >= total * (pieces.size() + 1)) {
+                pieces.add(subrange(first, c + 1));
+                first = c + 1;
+            }
+        }
+
+        return pieces;
+    }
+
+    /**
+     * This returns the number of distinct blocks in the space.
+     *
+     * @return The block count.
+     */
+    public int size() {
+        int count = 0;
+
+        for (int s = 0; s < spans.length; s += 2) {
+            count += spans[s + 1] - spans[s] + 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * This returns a rough count of the bytes this space uses, including its
+     * arrays.
+     *
+     * @return The approximate size in bytes.
+     */
+    public long getByteSize() {
+        final long objectHeader = 16;
+        final long arrayHeader = 16;
+
+        return objectHeader + 8 * 6
+                + arrayHeader + 8L * columnKeys.length
+                + arrayHeader + 4L * spanOffsets.length
+                + arrayHeader + 4L * spans.length;
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    /**
+     * This returns a space containing only the columns from 'first' up to
+     * (but not including) 'last'.
+     */
+    private SpanSpace subrange(int first, int last) {
+        int[] offsets = new int[last - first + 1];
+        int base = spanOffsets[first];
+
+        for (int c = first; c <= last; ++c) {
+            offsets[c - first] = spanOffsets[c] - base;
+        }
+
+        return new SpanSpace(
+                world,
+                Arrays.copyOfRange(columnKeys, first, last),
+                offsets,
+                Arrays.copyOfRange(spans, base, spanOffsets[last]));
+    }
+
+    private int firstColumnAtOrAfter(long key) {
+        int c = Arrays.binarySearch(columnKeys, key);
+        return c >= 0 ? c : -(c + 1);
+    }
+
+    /**
+     * This merges the columns of two span spaces, which must be in the same
+     * world; both are already sorted, so this is a simple merge.
+     */
+    private static SpanSpace merge(SpanSpace left, SpanSpace right) {
+        Builder b = new Builder(left.world);
+        int l = 0, r = 0;
+
+        while (l < left.columnKeys.length || r < right.columnKeys.length) {
+            long lk = l < left.columnKeys.length ? left.columnKeys[l] : Long.MAX_VALUE;
+            long rk = r < right.columnKeys.length ? right.columnKeys[r] : Long.MAX_VALUE;
+            long key = Math.min(lk, rk);
+            int x = columnX(key);
+            int z = columnZ(key);
+
+            // both columns have sorted runs, so merge them in order of start
+            int ls = lk == key ? left.spanOffsets[l] : 0;
+            int le = lk == key ? left.spanOffsets[l + 1] : 0;
+            int rs = rk == key ? right.spanOffsets[r] : 0;
+            int re = rk == key ? right.spanOffsets[r + 1] : 0;
+
+            while (ls < le || rs < re) {
+                if (rs >= re || (ls < le && left.spans[ls] <= right.spans[rs])) {
+                    b.add(x, z, left.spans[ls], left.spans[ls + 1]);
+                    ls += 2;
+                } else {
+                    b.add(x, z, right.spans[rs], right.spans[rs + 1]);
+                    rs += 2;
+                }
+            }
+
+            if (lk == key) {
+                ++l;
+            }
+
+            if (rk == key) {
+                ++r;
+            }
+        }
+
+        return (SpanSpace) b.build();
+    }
+
+    /**
+     * This class accumulates runs into the packed arrays; runs must be added
+     * in column order, and within a column in order of their bottom y. It
+     * merges runs that overlap or touch.
+     */
+    private static final class Builder {
+
+        private final World world;
+        private long[] keys = new long[16];
+        private int[] offsets = new int[17];
+        private int[] runs = new int[32];
+        private int columnCount = 0;
+        private int runLength = 0;
+
+        public Builder(World world) {
+            this.world = world;
+        }
+
+        public void add(int x, int z, int bottom, int top) {
+            long key = columnKey(x, z);
+
+            if (columnCount == 0 || keys[columnCount - 1] != key) {
+                if (columnCount == keys.length) {
+                    keys = Arrays.copyOf(keys, columnCount * 2);
+                    offsets = Arrays.copyOf(offsets, columnCount * 2 + 1);
+                }
+
+                keys[columnCount++] = key;
+                offsets[columnCount] = runLength;
+            } else if (bottom <= runs[runLength - 1] + 1) {
+                runs[runLength - 1] = Math.max(runs[runLength - 1], top);
+                return;
+            }
+
+            if (runLength + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+
+            runs[runLength++] = bottom;
+            runs[runLength++] = top;
+            offsets[columnCount] = runLength;
+        }
+
+        public Space build() {
+            if (columnCount == 0) {
+                return empty();
+            }
+
+            return new SpanSpace(
+                    world,
+                    Arrays.copyOf(keys, columnCount),
+                    Arrays.copyOf(offsets, columnCount + 1),
+                    Arrays.copyOf(runs, runLength));
+        }
+    }
+
+    /**
+     * This combines x and z into a key that sorts by x, then z, when compared
+     * as signed longs.
+     */
+    private static long columnKey(int x, int z) {
+        return ((long) x << 32) | ((z ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int columnX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int columnZ(long key) {
+        return ((int) key) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * This packs a block into a long that sorts by x, then z, then y, when
+     * compared as signed longs; it's Space.packBlock() with the sign bits of
+     * z and y flipped.
+     */
+    private static long sortableBlock(int x, int y, int z) {
+        return packBlock(x, y, z) ^ SORTABLE_FLIP;
+    }
+    private static final long SORTABLE_FLIP = (1L << 37) | (1L << 11);
+
+    private static int sortableX(long block) {
+        return unpackX(block ^ SORTABLE_FLIP);
+    }
+
+    private static int sortableY(long block) {
+        return unpackY(block ^ SORTABLE_FLIP);
+    }
+
+    private static int sortableZ(long block) {
+        return unpackZ(block ^ SORTABLE_FLIP);
+    }
+}
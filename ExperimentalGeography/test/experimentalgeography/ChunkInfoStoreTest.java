@@ -0,0 +1,85 @@
+package experimentalgeography;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check that ChunkInfoStore holds a large world's worth of chunks
+ * in about four bytes each, and gives back just what was put in.
+ *
+ * @author DanJ
+ */
+public class ChunkInfoStoreTest {
+
+    /**
+     * This is the width of the square of chunks we fill; it is a million
+     * chunks in all, and not a whole number of regions wide.
+     */
+    private static final int WIDTH = 1000;
+    private static final int MIN = -500;
+    /**
+     * This is the most bytes per chunk we allow; a slot is 4 bytes, and the
+     * regions at the edges of the square are only partly filled.
+     */
+    private static final double MAX_BYTES_PER_CHUNK = 4.5;
+
+    @Test
+    public void testMillionChunks() {
+        ChunkInfoStore store = new ChunkInfoStore(1);
+
+        for (int x = MIN; x < MIN + WIDTH; ++x) {
+            for (int z = MIN; z < MIN + WIDTH; ++z) {
+                assertTrue(store.put(x, z, highestBlockY(x, z), nodeY(x, z)));
+            }
+        }
+
+        assertEquals(WIDTH * WIDTH, store.size());
+
+        double bytesPerChunk = (double) store.getByteSize() / store.size();
+        assertTrue("Store uses " + bytesPerChunk + " bytes per chunk.", bytesPerChunk <= MAX_BYTES_PER_CHUNK);
+
+        for (int x = MIN; x < MIN + WIDTH; ++x) {
+            for (int z = MIN; z < MIN + WIDTH; ++z) {
+                int packed = store.get(x, z);
+                assertEquals(highestBlockY(x, z), ChunkInfoPacking.unpackHighestBlockY(packed));
+                assertEquals(nodeY(x, z), ChunkInfoPacking.unpackNodeY(packed));
+            }
+        }
+
+        // just outside the square, in regions that are present.
+        assertFalse(store.contains(MIN - 1, MIN));
+        assertFalse(store.contains(MIN + WIDTH, MIN + WIDTH - 1));
+        assertEquals(ChunkInfoPacking.MISSING, store.get(MIN + WIDTH, MIN));
+    }
+
+    @Test
+    public void testRemovedRegionsAreReused() {
+        ChunkInfoStore store = new ChunkInfoStore(4);
+
+        // one region at a time, as the schedule's region LRU would load and
+        // drop them.
+        for (int regionX = 0; regionX < 100; ++regionX) {
+            for (int x = regionX * 32; x < regionX * 32 + 32; ++x) {
+                for (int z = 0; z < 32; ++z) {
+                    store.put(x, z, highestBlockY(x, z), nodeY(x, z));
+                }
+            }
+
+            assertEquals(32 * 32, store.size());
+            assertEquals(nodeY(regionX * 32 + 5, 7), ChunkInfoPacking.unpackNodeY(store.get(regionX * 32 + 5, 7)));
+            store.removeRegion(regionX, 0);
+            assertEquals(0, store.size());
+            assertFalse(store.contains(regionX * 32 + 5, 7));
+        }
+
+        assertEquals(4L * 4 * 32 * 32, store.getByteSize());
+    }
+
+    private static int highestBlockY(int x, int z) {
+        return (x * 31 + z * 17) & 255;
+    }
+
+    private static int nodeY(int x, int z) {
+        return ((x ^ z) & 127) - 50;
+    }
+}
@@ -0,0 +1,266 @@
+package experimentalgeography;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.Files;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check that MapFileMap text reads back as it was written, both
+ * eagerly and lazily, however awkward the keys and values are.
+ *
+ * @author DanJ
+ */
+public class MapFileMapTest {
+
+    private static final String NL = MapFileMap.NEW_LINE;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ////////////////////////////////
+    // Escaping
+    //
+    @Test
+    public void testEscapedText() {
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("a=b", "c=d");
+        map.put("open", "[");
+        map.put("close", "]");
+        map.put("lines", "one" + NL + "two");
+        map.put("§", "§n");
+
+        map.put("spaced", " [ ");
+
+        assertEquals(ImmutableList.of(
+                "a§-b=c§-d",
+                "close=]",
+                "lines=one§ntwo",
+                "open=§[",
+                "spaced= §[ ",
+                "§§=§§n"),
+                MapFileMap.getLinesFromMap(map));
+    }
+
+    @Test
+    public void testAwkwardTextRoundTrips() throws IOException {
+        String[] pieces = {"", "a", "=", "[", "]", "§", "§n", "§-", "§[", NL, " ", "x y"};
+        Random random = new Random(11);
+
+        for (int trial = 0; trial < 2000; ++trial) {
+            Map<String, Object> map = Maps.newHashMap();
+
+            for (int i = 0; i < 4; ++i) {
+                map.put(i + randomText(random, pieces), randomText(random, pieces));
+            }
+
+            map.put("sub", ImmutableMap.of(randomText(random, pieces) + "k", randomText(random, pieces)));
+
+            StringWriter text = new StringWriter();
+            MapFileMap.write(text, map);
+            MapFileMap read = MapFileMap.read(new StringReader(text.toString()));
+
+            assertEquals(text.toString(), map.keySet(), read.keySet());
+
+            for (Map.Entry<String, Object> e : map.entrySet()) {
+                if (e.getValue() instanceof Map<?, ?>) {
+                    assertEquals(e.getValue(), read.getMapFileMap(e.getKey()));
+                } else {
+                    assertEquals(e.getValue(), read.getString(e.getKey()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLinesRoundTrip() {
+        Map<String, Object> map = ImmutableMap.<String, Object>of(
+                "name", "x=[y]" + NL + "§",
+                "list", ImmutableList.of("p", "q"));
+
+        MapFileMap read = new MapFileMap();
+        read.loadFromLines(MapFileMap.getLinesFromMap(map));
+
+        assertEquals("x=[y]" + NL + "§", read.getString("name"));
+        assertEquals(ImmutableList.of("p", "q"), read.getList("list"));
+        assertTrue(MapFileMap.getLinesFromMap(ImmutableMap.of()).isEmpty());
+    }
+
+    @Test
+    public void testAnyLineEndingReads() throws IOException {
+        for (String separator : new String[]{"\n", "\r", "\r\n"}) {
+            String text = Joiner.on(separator).join("a=1", "sub=[", "b=x", "]", "c=y") + separator;
+            MapFileMap read = MapFileMap.read(new StringReader(text));
+
+            assertEquals(separator, ImmutableSet.of("a", "sub", "c"), read.keySet());
+            assertEquals("x", read.getMapFileMap("sub").getString("b"));
+            assertEquals("y", read.getString("c"));
+        }
+    }
+
+    @Test
+    public void testIntegersAreDecoded() throws IOException {
+        MapFileMap read = MapFileMap.read(new StringReader(Joiner.on(NL).join(
+                "zero=0", "negative=-2147483648", "big=2147483648", "padded=007", "plus=+1", "minusZero=-0")));
+
+        assertEquals(Integer.valueOf(0), read.get("zero"));
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE), read.get("negative"));
+        assertEquals("2147483648", read.get("big"));
+        assertEquals("007", read.get("padded"));
+        assertEquals("+1", read.get("plus"));
+        assertEquals("-0", read.get("minusZero"));
+        assertEquals(7, read.getInteger("padded"));
+        assertEquals(2147483648L, read.getLong("big"));
+    }
+
+    @Test
+    public void testStorablesRoundTrip() throws IOException {
+        List<OriginalChunkInfo> infos = sampleInfos(50);
+        StringWriter text = new StringWriter();
+        MapFileMap.write(text, ImmutableMap.of("infos", infos, "where", infos.get(3).position));
+
+        MapFileMap read = MapFileMap.read(new StringReader(text.toString()));
+        assertInfosEqual(infos, read.getList("infos", OriginalChunkInfo.class));
+        assertEquals(infos.get(3).position, read.getValue("where", ChunkPosition.class));
+    }
+
+    ////////////////////////////////
+    // Lazy Reading
+    //
+    @Test
+    public void testLazyReadMatchesEagerRead() throws IOException {
+        File file = writeLegacySchedule();
+
+        MapFileMap eager = MapFileMap.read(file);
+        MapFileMap lazy = MapFileMap.readLazily(file);
+
+        assertEquals(eager.keySet(), lazy.keySet());
+        assertEquals(eager.getLong("seed"), lazy.getLong("seed"));
+        assertInfosEqual(eager.getList("loadedChunks", OriginalChunkInfo.class),
+                lazy.getList("loadedChunks", OriginalChunkInfo.class));
+        assertEquals(eager, lazy);
+        assertEquals(lazy, eager);
+    }
+
+    @Test
+    public void testLazyReadReturnsParsedSubmaps() throws IOException {
+        File file = writeLegacySchedule();
+        MapFileMap lazy = MapFileMap.readLazily(file);
+
+        assertEquals(-987654321L, lazy.getLong("seed"));
+
+        List<ChunkPosition> pending = lazy.getList("pendingChunks", ChunkPosition.class);
+        assertEquals(sampleInfos(300).get(0).position, pending.get(0));
+        assertSame(lazy.get("pendingChunks"), lazy.get("pendingChunks"));
+
+        for (Object value : lazy.values()) {
+            assertTrue(value instanceof String || value instanceof Number || value instanceof MapFileMap);
+        }
+    }
+
+    @Test
+    public void testLazyMapKeyMethodsSeeUnparsedSubmaps() throws IOException {
+        File file = writeLegacySchedule();
+        MapFileMap eager = MapFileMap.read(file);
+        MapFileMap lazy = MapFileMap.readLazily(file);
+
+        assertEquals(eager.size(), lazy.size());
+        assertFalse(lazy.isEmpty());
+        assertTrue(lazy.containsKey("loadedChunks"));
+        assertTrue(lazy.getOrDefault("pendingChunks", null) instanceof MapFileMap);
+        assertEquals("none", lazy.getOrDefault("missing", "none"));
+        assertTrue(lazy.putIfAbsent("pendingChunks", "x") instanceof MapFileMap);
+
+        assertEquals(eager.get("loadedChunks"), lazy.put("loadedChunks", "replaced"));
+        assertEquals("replaced", lazy.get("loadedChunks"));
+        assertEquals(eager.size(), lazy.size());
+
+        assertEquals(eager.get("pendingChunks"), lazy.remove("pendingChunks"));
+        assertFalse(lazy.containsKey("pendingChunks"));
+        assertEquals(eager.size() - 1, lazy.size());
+    }
+
+    @Test
+    public void testLazyMapCopiesAreParsed() throws IOException {
+        File file = writeLegacySchedule();
+        MapFileMap eager = MapFileMap.read(file);
+
+        assertEquals(eager, MapFileMap.readLazily(file).clone());
+        assertEquals(eager, new HashMap<String, Object>(MapFileMap.readLazily(file)));
+        assertEquals(eager, new MapFileMap(MapFileMap.readLazily(file)));
+    }
+
+    @Test
+    public void testLazyReadOfCarriageReturnFile() throws IOException {
+        File file = writeLegacySchedule();
+        String text = Files.toString(file, Charsets.UTF_8);
+        Files.write(text.replace(NL, "\r\n"), file, Charsets.UTF_8);
+
+        assertEquals(MapFileMap.read(file), MapFileMap.readLazily(file));
+    }
+
+    @Test
+    public void testLazyReadOfEmptyFile() throws IOException {
+        File file = folder.newFile("empty.txt");
+
+        assertTrue(MapFileMap.readLazily(file).isEmpty());
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private File writeLegacySchedule() throws IOException {
+        List<OriginalChunkInfo> infos = sampleInfos(300);
+        List<ChunkPosition> pending = Lists.newArrayList();
+
+        for (int i = 0; i < infos.size(); i += 3) {
+            pending.add(infos.get(i).position);
+        }
+
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("seed", -987654321L);
+        map.put("loadedChunks", infos);
+        map.put("pendingChunks", pending);
+        map.put("note", "x=[" + NL + "]");
+
+        File file = folder.newFile("schedule.txt");
+        MapFileMap.write(file, map);
+        return file;
+    }
+
+    private static List<OriginalChunkInfo> sampleInfos(int count) {
+        Random random = new Random(3);
+        List<OriginalChunkInfo> infos = Lists.newArrayList();
+
+        for (int i = 0; i < count; ++i) {
+            ChunkPosition position = new ChunkPosition(random.nextInt(2000) - 1000, random.nextInt(2000) - 1000, "world");
+            infos.add(new OriginalChunkInfo(position, random.nextInt(256), random.nextInt(100)));
+        }
+
+        return infos;
+    }
+
+    private static void assertInfosEqual(List<OriginalChunkInfo> expected, List<OriginalChunkInfo> actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).position, actual.get(i).position);
+            assertEquals(expected.get(i).highestBlockY, actual.get(i).highestBlockY);
+            assertEquals(expected.get(i).nodeY, actual.get(i).nodeY);
+        }
+    }
+
+    private static String randomText(Random random, String[] pieces) {
+        StringBuilder b = new StringBuilder();
+        int count = random.nextInt(5);
+
+        for (int i = 0; i < count; ++i) {
+            b.append(pieces[random.nextInt(pieces.length)]);
+        }
+
+        return b.toString();
+    }
+}
@@ -0,0 +1,209 @@
+package experimentalgeography;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check that the schedule journal replays what was appended to
+ * it, and that a damaged record at the end is cut off rather than replayed.
+ *
+ * @author DanJ
+ */
+public class ScheduleJournalTest {
+
+    private static final long SEED = 1234567890123L;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int SCHEDULED_SIZE = 1 + 4 + 4 + 2 + 2 + 4;
+    private static final int POSITION_SIZE = 1 + 4 + 4 + 4;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "journal.bin");
+    }
+
+    @Test
+    public void testReplayReturnsAppendedRecords() {
+        writeSampleJournal();
+
+        Recorder recorder = new Recorder();
+        assertTrue(new ScheduleJournal(file, SEED).replay(recorder));
+        assertEquals(sampleRecords(), recorder.records);
+        assertEquals(0, recorder.generation);
+    }
+
+    @Test
+    public void testReplayCutsOffTruncatedRecord() throws IOException {
+        writeSampleJournal();
+        long intactSize = file.length() - POSITION_SIZE;
+        setLength(file.length() - 5);
+
+        Recorder recorder = new Recorder();
+        ScheduleJournal journal = new ScheduleJournal(file, SEED);
+        assertFalse(journal.replay(recorder));
+        assertEquals(sampleRecords().subList(0, 3), recorder.records);
+        assertEquals(intactSize, file.length());
+        assertEquals(3, journal.getRecordCount());
+
+        // the journal carries on after the records that were intact
+        journal.appendTaken(9, 9);
+        journal.close();
+
+        recorder = new Recorder();
+        assertTrue(new ScheduleJournal(file, SEED).replay(recorder));
+        assertEquals(ImmutableList.<String>builder().addAll(sampleRecords().subList(0, 3)).add("T 9 9").build(),
+                recorder.records);
+    }
+
+    @Test
+    public void testReplayCutsOffCorruptRecord() throws IOException {
+        writeSampleJournal();
+        long intactSize = file.length() - POSITION_SIZE;
+        flipByte(file.length() - 1);
+
+        Recorder recorder = new Recorder();
+        assertFalse(new ScheduleJournal(file, SEED).replay(recorder));
+        assertEquals(sampleRecords().subList(0, 3), recorder.records);
+        assertEquals(intactSize, file.length());
+    }
+
+    @Test
+    public void testReplayStopsAtCorruptRecordInMiddle() throws IOException {
+        writeSampleJournal();
+        // damage the x co-ordinate of the second record.
+        flipByte(HEADER_SIZE + SCHEDULED_SIZE + 2);
+
+        Recorder recorder = new Recorder();
+        assertFalse(new ScheduleJournal(file, SEED).replay(recorder));
+        assertEquals(sampleRecords().subList(0, 1), recorder.records);
+        assertEquals(HEADER_SIZE + SCHEDULED_SIZE, file.length());
+    }
+
+    @Test
+    public void testReplayCutsOffTruncatedHeader() throws IOException {
+        writeSampleJournal();
+        setLength(HEADER_SIZE - 3);
+
+        Recorder recorder = new Recorder();
+        assertFalse(new ScheduleJournal(file, SEED).replay(recorder));
+        assertTrue(recorder.records.isEmpty());
+        assertEquals(0, recorder.generation);
+    }
+
+    @Test
+    public void testReplayIgnoresOtherSeed() {
+        writeSampleJournal();
+
+        Recorder recorder = new Recorder();
+        assertTrue(new ScheduleJournal(file, SEED + 1).replay(recorder));
+        assertTrue(recorder.records.isEmpty());
+    }
+
+    @Test
+    public void testCommitMarkKeepsOnlyTail() {
+        ScheduleJournal journal = new ScheduleJournal(file, SEED);
+        journal.replay(new Recorder());
+        journal.appendScheduled(1, 2, 70, 30);
+        journal.mark();
+        journal.appendTaken(1, 2);
+        journal.commitMark(5);
+        journal.appendPopulated(1, 2);
+        journal.close();
+
+        Recorder recorder = new Recorder();
+        assertTrue(new ScheduleJournal(file, SEED).replay(recorder));
+        assertEquals(5, recorder.generation);
+        assertEquals(ImmutableList.of("T 1 2", "P 1 2"), recorder.records);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReplayRejectsOtherFiles() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            out.writeInt(ScheduleShardFile.MAGIC);
+            out.write(new byte[HEADER_SIZE]);
+        } finally {
+            out.close();
+        }
+
+        new ScheduleJournal(file, SEED).replay(new Recorder());
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private void writeSampleJournal() {
+        ScheduleJournal journal = new ScheduleJournal(file, SEED);
+        journal.replay(new Recorder());
+        journal.appendScheduled(-3, 7, 64, -2);
+        journal.appendScheduled(100000, -100000, 255, 40);
+        journal.appendTaken(-3, 7);
+        journal.appendPopulated(-3, 7);
+        journal.close();
+
+        assertEquals(HEADER_SIZE + 2 * SCHEDULED_SIZE + 2 * POSITION_SIZE, file.length());
+    }
+
+    private static List<String> sampleRecords() {
+        return ImmutableList.of("S -3 7 64 -2", "S 100000 -100000 255 40", "T -3 7", "P -3 7");
+    }
+
+    private void setLength(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flipByte(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x5A);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * This replayer records each record as a string.
+     */
+    private static final class Recorder implements ScheduleJournal.Replayer {
+
+        public final List<String> records = Lists.newArrayList();
+        public long generation = -1;
+
+        @Override
+        public void begin(long generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void scheduled(int x, int z, int highestBlockY, int nodeY) {
+            records.add(String.format("S %d %d %d %d", x, z, highestBlockY, nodeY));
+        }
+
+        @Override
+        public void taken(int x, int z) {
+            records.add(String.format("T %d %d", x, z));
+        }
+
+        @Override
+        public void populated(int x, int z) {
+            records.add(String.format("P %d %d", x, z));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package experimentalgeography;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check that a schedule shard reads back just as it was written.
+ *
+ * @author DanJ
+ */
+public class ScheduleShardFileTest {
+
+    private static final long SEED = -42L;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "r.-1.2.bin");
+    }
+
+    @Test
+    public void testRoundTrip() {
+        // region -1, 2 covers chunks x -32 to -1 and z 64 to 95.
+        ScheduleShardFile.Writer writer = new ScheduleShardFile.Writer(SEED, -1, 2);
+        List<String> expected = Lists.newArrayList();
+        Random random = new Random(7);
+
+        for (int x = -32; x < 0; ++x) {
+            for (int z = 64; z < 96; ++z) {
+                if (random.nextInt(3) == 0 && !(x == -1 && z == 95)) {
+                    int info = random.nextBoolean()
+                            ? ChunkInfoPacking.pack(random.nextInt(256), random.nextInt(200) - 50)
+                            : ChunkInfoPacking.MISSING;
+                    boolean pending = random.nextBoolean();
+                    int loadedNeighborCount = random.nextInt(9);
+                    int populatedCount = random.nextInt(10);
+
+                    writer.add(x, z, info, pending, loadedNeighborCount, populatedCount);
+                    expected.add(describe(x, z, info, pending, loadedNeighborCount, populatedCount));
+                }
+            }
+        }
+
+        // the last chunk of the region has the largest index there is.
+        writer.add(-1, 95, ChunkInfoPacking.pack(-1, 0), true, 8, 9);
+        expected.add(describe(-1, 95, ChunkInfoPacking.pack(-1, 0), true, 8, 9));
+        writer.write(file);
+
+        Collector collector = new Collector();
+        assertTrue(ScheduleShardFile.read(file, SEED, collector));
+        assertEquals(expected, collector.records);
+        assertFalse(ScheduleShardFile.isEmpty(file));
+        assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+    }
+
+    @Test
+    public void testOtherSeedIsSkipped() {
+        ScheduleShardFile.Writer writer = new ScheduleShardFile.Writer(SEED, -1, 2);
+        writer.add(-5, 70, ChunkInfoPacking.pack(64, 30), true, 0, 0);
+        writer.write(file);
+
+        Collector collector = new Collector();
+        assertFalse(ScheduleShardFile.read(file, SEED + 1, collector));
+        assertTrue(collector.records.isEmpty());
+    }
+
+    @Test
+    public void testEmptyShard() {
+        new ScheduleShardFile.Writer(SEED, -1, 2).write(file);
+
+        Collector collector = new Collector();
+        assertTrue(ScheduleShardFile.read(file, SEED, collector));
+        assertTrue(collector.records.isEmpty());
+        assertTrue(ScheduleShardFile.isEmpty(file));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordsMustBeInOrder() {
+        ScheduleShardFile.Writer writer = new ScheduleShardFile.Writer(SEED, -1, 2);
+        writer.add(-5, 70, ChunkInfoPacking.MISSING, true, 0, 0);
+        writer.add(-6, 70, ChunkInfoPacking.MISSING, true, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordsMustBeInRegion() {
+        new ScheduleShardFile.Writer(SEED, -1, 2).add(0, 70, ChunkInfoPacking.MISSING, true, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherFilesAreRejected() throws IOException {
+        MapFileMap.write(file, ImmutableMap.of("seed", SEED));
+        ScheduleShardFile.read(file, SEED, new Collector());
+    }
+
+    ////////////////////////////////
+    // Implementation
+    //
+    private static String describe(int x, int z, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+        String infoText = info == ChunkInfoPacking.MISSING ? "-"
+                : ChunkInfoPacking.unpackHighestBlockY(info) + "/" + ChunkInfoPacking.unpackNodeY(info);
+
+        return String.format("%d,%d %s %b %d %d", x, z, infoText, pending, loadedNeighborCount, populatedCount);
+    }
+
+    /**
+     * This sink records each record as a string.
+     */
+    private static final class Collector implements ScheduleShardFile.RecordSink {
+
+        public final List<String> records = Lists.newArrayList();
+
+        @Override
+        public void record(int x, int z, int info, boolean pending, int loadedNeighborCount, int populatedCount) {
+            records.add(describe(x, z, info, pending, loadedNeighborCount, populatedCount));
+        }
+    }
+}